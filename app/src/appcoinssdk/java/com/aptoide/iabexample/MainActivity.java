@@ -31,7 +31,9 @@ import com.appcoins.sdk.billing.listeners.SkuDetailsResponseListener;
 import com.appcoins.sdk.billing.types.SkuType;
 import com.aptoide.iabexample.util.GenericPaymentIntentBuilder;
 import com.aptoide.iabexample.util.IabBroadcastReceiver;
+import com.aptoide.iabexample.util.NetworkAwareScheduler;
 import com.aptoide.iabexample.util.PurchaseService;
+import com.aptoide.iabexample.util.SharedPreferencesVerificationResultStore;
 import com.aptoide.iabexample.util.Skus;
 import com.google.gson.Gson;
 import java.util.ArrayList;
@@ -121,6 +123,7 @@ public class MainActivity extends Activity
   // Provides purchase notification while this app is running
   Handler handler;
   PurchaseService purchasesService;
+  NetworkAwareScheduler networkScheduler;
   private AppcoinsBillingClient cab;
   ConsumeResponseListener consumeResponseListener = new ConsumeResponseListener() {
     @Override public void onConsumeResponse(int responseCode, String purchaseToken) {
@@ -318,6 +321,12 @@ public class MainActivity extends Activity
     purchasesService =
         new PurchaseService(baseHost, BuildConfig.APPLICATION_ID, purchaseValidatorListener,
             new Gson());
+    // Purchases that were already verified are not sent to the backend again
+    purchasesService.setResultStore(new SharedPreferencesVerificationResultStore(this));
+    // Purchases that couldn't be verified while offline are verified once the network is back
+    purchasesService.enableOfflineQueue(this);
+    networkScheduler = new NetworkAwareScheduler(this);
+    purchasesService.setNetworkScheduler(networkScheduler);
     setContentView(R.layout.activity_main);
     loadData();
     if (mSubscribedToGasReserve) {
@@ -346,6 +355,12 @@ public class MainActivity extends Activity
     startConnection();
   }
 
+  @Override protected void onDestroy() {
+    super.onDestroy();
+    purchasesService.release();
+    networkScheduler.release();
+  }
+
   @Override protected void onActivityResult(int requestCode, int resultCode, Intent data) {
     Log.d(TAG, "onActivityResult(" + requestCode + "," + resultCode + "," + data);
     setWaitScreen(false);
@@ -385,7 +400,9 @@ public class MainActivity extends Activity
   @Override public void receivedBroadcast() {
     // Received a broadcast notification that the inventory of items has changed
     Log.d(TAG, "Received broadcast notification. Querying inventory.");
-    callSkuDetails();
+    // Nothing is waiting on this refresh, so it waits for a good connection
+    networkScheduler.submit(NetworkAwareScheduler.Priority.DEFERRABLE,
+        () -> handler.post(this::callSkuDetails));
   }
 
   @Override public void onClick(DialogInterface dialog, int id) {
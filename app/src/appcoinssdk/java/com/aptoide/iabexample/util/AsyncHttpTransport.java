@@ -0,0 +1,33 @@
+package com.aptoide.iabexample.util;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Transport used by {@link PurchaseService} to talk to the purchase verification backend without
+ * holding a thread while a request is pending.
+ *
+ * Implementations backed by an event driven client can keep any number of requests in flight on a
+ * fixed number of threads. {@link ExecutorAsyncHttpTransport} adapts a blocking
+ * {@link HttpTransport} by running its requests on a bounded pool of threads.
+ */
+public interface AsyncHttpTransport {
+
+  /**
+   * Sends a POST request and returns right away. Exactly one of the callback methods is called
+   * when the request completes, on a thread owned by the transport.
+   *
+   * @param url The full request url.
+   * @param headers Request headers to add, besides the content type and encoding.
+   * @param body The request body.
+   * @param callback Receives the response, which it must close, or the error.
+   */
+  void post(String url, Map<String, String> headers, HttpTransport.RequestBody body,
+      Callback callback);
+
+  interface Callback {
+    void onResponse(HttpResponse response);
+
+    void onFailure(IOException error);
+  }
+}
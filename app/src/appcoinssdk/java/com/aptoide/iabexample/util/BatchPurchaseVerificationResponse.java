@@ -0,0 +1,51 @@
+package com.aptoide.iabexample.util;
+
+import java.util.List;
+
+/**
+ * Response of the batch purchase check endpoint, holding one result per verified purchase.
+ */
+public class BatchPurchaseVerificationResponse {
+  private final List<Result> results;
+
+  public BatchPurchaseVerificationResponse(List<Result> results) {
+    this.results = results;
+  }
+
+  public List<Result> getResults() {
+    return results;
+  }
+
+  @Override public String toString() {
+    return "BatchPurchaseVerificationResponse{" + "results=" + results + '}';
+  }
+
+  public static class Result {
+    private final String product;
+    private final String token;
+    private final PurchaseVerificationResponse.Status status;
+
+    public Result(String product, String token, PurchaseVerificationResponse.Status status) {
+      this.product = product;
+      this.token = token;
+      this.status = status;
+    }
+
+    public String getProduct() {
+      return product;
+    }
+
+    public String getToken() {
+      return token;
+    }
+
+    public PurchaseVerificationResponse.Status getStatus() {
+      return status;
+    }
+
+    @Override public String toString() {
+      return "Result{" + "product='" + product + '\'' + ", token='" + token + '\'' + ", status="
+          + status + '}';
+    }
+  }
+}
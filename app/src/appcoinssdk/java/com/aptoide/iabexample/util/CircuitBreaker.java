@@ -0,0 +1,103 @@
+package com.aptoide.iabexample.util;
+
+import android.os.SystemClock;
+
+/**
+ * Stops calls to the verification backend after it failed too many times in a row.
+ *
+ * The breaker starts {@link State#CLOSED}. After the failure threshold is reached it becomes
+ * {@link State#OPEN} and rejects every call. Once the open duration has passed it becomes
+ * {@link State#HALF_OPEN} and lets a single trial call through: if it succeeds the breaker closes,
+ * otherwise it opens again.
+ */
+public class CircuitBreaker {
+  public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  public static final long DEFAULT_OPEN_DURATION_MILLIS = 30000;
+
+  private final int failureThreshold;
+  private final long openDurationMillis;
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openedAt;
+  private boolean trialInProgress;
+
+  /**
+   * @param failureThreshold Number of consecutive failures that opens the breaker.
+   * @param openDurationMillis How long the breaker stays open before letting a trial call
+   * through.
+   */
+  public CircuitBreaker(int failureThreshold, long openDurationMillis) {
+    if (failureThreshold < 1) {
+      throw new IllegalArgumentException("failureThreshold must be at least 1");
+    }
+    this.failureThreshold = failureThreshold;
+    this.openDurationMillis = openDurationMillis;
+  }
+
+  public static CircuitBreaker createDefault() {
+    return new CircuitBreaker(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION_MILLIS);
+  }
+
+  public synchronized State getState() {
+    if (state == State.OPEN && SystemClock.elapsedRealtime() - openedAt >= openDurationMillis) {
+      state = State.HALF_OPEN;
+    }
+    return state;
+  }
+
+  /**
+   * @return How long until the breaker lets a trial call through, or 0 if it would let a call
+   * through now.
+   */
+  public synchronized long getRetryAfterMillis() {
+    if (getState() != State.OPEN) {
+      return 0;
+    }
+    return Math.max(0, openDurationMillis - (SystemClock.elapsedRealtime() - openedAt));
+  }
+
+  /**
+   * Must be called before each call. A call that is allowed must then be reported through
+   * {@link #onSuccess()} or {@link #onFailure()}.
+   *
+   * @return true if the call can be made.
+   */
+  public synchronized boolean allowRequest() {
+    switch (getState()) {
+      case CLOSED:
+        return true;
+      case HALF_OPEN:
+        if (trialInProgress) {
+          return false;
+        }
+        trialInProgress = true;
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  public synchronized void onSuccess() {
+    consecutiveFailures = 0;
+    trialInProgress = false;
+    state = State.CLOSED;
+  }
+
+  public synchronized void onFailure() {
+    trialInProgress = false;
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+      state = State.OPEN;
+      openedAt = SystemClock.elapsedRealtime();
+    }
+  }
+
+  public enum State {
+    /** Calls go through. */
+    CLOSED,
+    /** Calls are rejected. */
+    OPEN,
+    /** A single trial call is let through to find out whether the backend recovered. */
+    HALF_OPEN
+  }
+}
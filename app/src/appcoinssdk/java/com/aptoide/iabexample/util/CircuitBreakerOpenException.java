@@ -0,0 +1,17 @@
+package com.aptoide.iabexample.util;
+
+/**
+ * Reported when a verification was not attempted because the {@link CircuitBreaker} is open.
+ */
+public class CircuitBreakerOpenException extends Exception {
+  private final long retryAfterMillis;
+
+  public CircuitBreakerOpenException(long retryAfterMillis) {
+    super("Verification backend unavailable. Retry in " + retryAfterMillis + " ms");
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  public long getRetryAfterMillis() {
+    return retryAfterMillis;
+  }
+}
@@ -0,0 +1,121 @@
+package com.aptoide.iabexample.util;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+
+/**
+ * Notifies a listener whenever the quality of the connection to the internet changes: a network
+ * becomes available or is lost, or the active one changes from metered to unmetered, gets
+ * validated, and so on.
+ */
+public class ConnectivityMonitor {
+  // Below this estimated bandwidth the link is considered constrained
+  private static final int MIN_GOOD_BANDWIDTH_KBPS = 1000;
+
+  private final ConnectivityManager connectivityManager;
+  private final Listener listener;
+  private final ConnectivityManager.NetworkCallback networkCallback =
+      new ConnectivityManager.NetworkCallback() {
+        @Override public void onAvailable(Network network) {
+          onNetworkChanged();
+        }
+
+        @Override public void onLost(Network network) {
+          onNetworkChanged();
+        }
+
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+          onNetworkChanged();
+        }
+      };
+  private boolean started;
+  private Quality lastQuality;
+
+  public ConnectivityMonitor(Context context, Listener listener) {
+    this.connectivityManager = (ConnectivityManager) context.getApplicationContext()
+        .getSystemService(Context.CONNECTIVITY_SERVICE);
+    this.listener = listener;
+  }
+
+  public synchronized void start() {
+    if (started) {
+      return;
+    }
+    lastQuality = getQuality();
+    connectivityManager.registerNetworkCallback(new NetworkRequest.Builder().addCapability(
+        NetworkCapabilities.NET_CAPABILITY_INTERNET)
+        .build(), networkCallback);
+    started = true;
+  }
+
+  public synchronized void stop() {
+    if (!started) {
+      return;
+    }
+    connectivityManager.unregisterNetworkCallback(networkCallback);
+    started = false;
+  }
+
+  public boolean isConnected() {
+    NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+    return networkInfo != null && networkInfo.isConnected();
+  }
+
+  /**
+   * @return The quality of the active network. Before Android M, when the platform doesn't say
+   * whether a network was validated, a connected network is good unless it is metered.
+   */
+  public Quality getQuality() {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+      if (!isConnected()) {
+        return Quality.NONE;
+      }
+      return connectivityManager.isActiveNetworkMetered() ? Quality.CONSTRAINED : Quality.GOOD;
+    }
+    Network network = connectivityManager.getActiveNetwork();
+    NetworkCapabilities capabilities =
+        network != null ? connectivityManager.getNetworkCapabilities(network) : null;
+    if (capabilities == null
+        || !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)) {
+      return Quality.NONE;
+    }
+    // The bandwidth is an estimate, and zero when it is unknown
+    int bandwidthKbps = capabilities.getLinkDownstreamBandwidthKbps();
+    if (!capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)
+        || !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)
+        || (bandwidthKbps > 0 && bandwidthKbps < MIN_GOOD_BANDWIDTH_KBPS)) {
+      return Quality.CONSTRAINED;
+    }
+    return Quality.GOOD;
+  }
+
+  private void onNetworkChanged() {
+    Quality quality = getQuality();
+    synchronized (this) {
+      if (quality == lastQuality) {
+        return;
+      }
+      lastQuality = quality;
+    }
+    listener.onConnectivityChanged(quality);
+  }
+
+  public enum Quality {
+    /** No network with internet access. */
+    NONE,
+    /** Metered, slow, or not yet validated as reaching the internet, e.g. behind a portal. */
+    CONSTRAINED,
+    /** Validated, unmetered and reasonably fast. */
+    GOOD
+  }
+
+  public interface Listener {
+    void onConnectivityChanged(Quality quality);
+  }
+}
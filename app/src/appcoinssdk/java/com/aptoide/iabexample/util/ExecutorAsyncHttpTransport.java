@@ -0,0 +1,74 @@
+package com.aptoide.iabexample.util;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link AsyncHttpTransport} that runs the requests of a blocking {@link HttpTransport} on a fixed
+ * number of threads. Requests over that number wait in a queue, so the threads used stay the same
+ * no matter how many requests are pending. Idle threads are released after a while.
+ *
+ * A request that fails with a {@link RuntimeException} is reported to
+ * {@link Callback#onFailure} as an {@link IOException} caused by it, so the callback is always
+ * called exactly once.
+ */
+public class ExecutorAsyncHttpTransport implements AsyncHttpTransport {
+  private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+
+  private static ExecutorAsyncHttpTransport defaultInstance;
+
+  private final HttpTransport transport;
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * @param transport The transport that sends the requests.
+   * @param maxThreads Maximum number of requests sent at the same time. There is no point in
+   * making it larger than the number of connections the transport allows.
+   */
+  public ExecutorAsyncHttpTransport(HttpTransport transport, int maxThreads) {
+    this.transport = transport;
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(maxThreads, maxThreads, IDLE_THREAD_TIMEOUT_SECONDS,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+      Thread thread = new Thread(runnable, "AsyncHttpTransport-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @return A transport shared by the whole process, on top of
+   * {@link KeepAliveHttpTransport#getDefault()} with one thread per connection it allows.
+   */
+  public static synchronized ExecutorAsyncHttpTransport getDefault() {
+    if (defaultInstance == null) {
+      defaultInstance = new ExecutorAsyncHttpTransport(KeepAliveHttpTransport.getDefault(),
+          KeepAliveHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+    return defaultInstance;
+  }
+
+  @Override public void post(String url, Map<String, String> headers,
+      HttpTransport.RequestBody body, Callback callback) {
+    executor.execute(() -> {
+      HttpResponse response;
+      try {
+        response = transport.post(url, headers, body);
+      } catch (IOException e) {
+        callback.onFailure(e);
+        return;
+      } catch (RuntimeException e) {
+        // Such as a bad url or a failure of the body to write itself, which must not leave the
+        // callback without an outcome. A failure of the callback itself isn't reported to it again.
+        callback.onFailure(new IOException(e));
+        return;
+      }
+      callback.onResponse(response);
+    });
+  }
+}
@@ -0,0 +1,74 @@
+package com.aptoide.iabexample.util;
+
+/**
+ * Decides when a purchase check that is taking long gets a second, identical request sent
+ * alongside it ("hedging"), whichever answer arrives first being used.
+ *
+ * A check is hedged once it has been waiting longer than a given percentile of the recent check
+ * latencies, so only the slowest checks are hedged. Hedges are also capped to a share of all the
+ * checks made, with a small allowance for bursts, so a slow backend doesn't get twice the load.
+ */
+public class HedgingPolicy {
+  public static final double DEFAULT_PERCENTILE = 0.95;
+  public static final double DEFAULT_MAX_HEDGE_RATIO = 0.05;
+  public static final long DEFAULT_MIN_DELAY_MILLIS = 100;
+  private static final int LATENCY_SAMPLES = 128;
+  // Hedges aren't sent until this many latencies are known
+  private static final int MIN_LATENCY_SAMPLES = 20;
+  private static final double MAX_HEDGE_BURST = 5;
+
+  private final double percentile;
+  private final double maxHedgeRatio;
+  private final long minDelayMillis;
+  private final LatencyTracker latencies = new LatencyTracker(LATENCY_SAMPLES, MIN_LATENCY_SAMPLES);
+  private double hedgeCredits;
+
+  /**
+   * @param percentile Percentile of the recent latencies after which a check is hedged, between 0
+   * and 1.
+   * @param maxHedgeRatio Maximum share of checks that are hedged.
+   * @param minDelayMillis Minimum time a check waits before being hedged, whatever the recent
+   * latencies.
+   */
+  public HedgingPolicy(double percentile, double maxHedgeRatio, long minDelayMillis) {
+    if (percentile <= 0 || percentile > 1) {
+      throw new IllegalArgumentException("percentile must be in (0, 1]");
+    }
+    this.percentile = percentile;
+    this.maxHedgeRatio = maxHedgeRatio;
+    this.minDelayMillis = minDelayMillis;
+  }
+
+  public static HedgingPolicy createDefault() {
+    return new HedgingPolicy(DEFAULT_PERCENTILE, DEFAULT_MAX_HEDGE_RATIO,
+        DEFAULT_MIN_DELAY_MILLIS);
+  }
+
+  /**
+   * Called for every check sent, which earns the right to hedge a share of them.
+   *
+   * @return How long the check may wait before it is hedged, or -1 if it must not be.
+   */
+  long onCheckStarted() {
+    synchronized (this) {
+      hedgeCredits = Math.min(MAX_HEDGE_BURST, hedgeCredits + maxHedgeRatio);
+    }
+    long delay = latencies.getPercentile(percentile);
+    return delay < 0 ? -1 : Math.max(minDelayMillis, delay);
+  }
+
+  /**
+   * @return true if a hedge may be sent now, in which case it is counted against the cap.
+   */
+  synchronized boolean tryHedge() {
+    if (hedgeCredits < 1) {
+      return false;
+    }
+    hedgeCredits--;
+    return true;
+  }
+
+  void recordLatency(long latencyMillis) {
+    latencies.record(latencyMillis);
+  }
+}
@@ -0,0 +1,49 @@
+package com.aptoide.iabexample.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Response returned by a {@link HttpTransport}. Closing it releases the connection, which is kept
+ * alive for reuse when the transport supports it.
+ */
+public class HttpResponse implements Closeable {
+  private final int code;
+  private final String message;
+  private final InputStream body;
+  private final Closeable releaser;
+
+  /**
+   * @param code The HTTP status code.
+   * @param message The HTTP status message.
+   * @param body The response body. It may be empty, but never null.
+   * @param releaser Called once when the response is closed.
+   */
+  public HttpResponse(int code, String message, InputStream body, Closeable releaser) {
+    this.code = code;
+    this.message = message;
+    this.body = body;
+    this.releaser = releaser;
+  }
+
+  public int getCode() {
+    return code;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  public InputStream getBody() {
+    return body;
+  }
+
+  public boolean isSuccessful() {
+    return code >= 200 && code < 300;
+  }
+
+  @Override public void close() throws IOException {
+    releaser.close();
+  }
+}
@@ -0,0 +1,42 @@
+package com.aptoide.iabexample.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Transport used by {@link PurchaseService} to talk to the purchase verification backend.
+ *
+ * The default implementation is {@link KeepAliveHttpTransport}. Other implementations can be
+ * plugged in, for example to point the service at a local stand-in server.
+ */
+public interface HttpTransport {
+
+  /**
+   * Sends a POST request. The returned response must always be closed, which gives the underlying
+   * connection back to the transport.
+   *
+   * @param url The full request url.
+   * @param headers Request headers to add, besides the content type and encoding.
+   * @param body The request body.
+   *
+   * @return The response, whatever its status code. A gzip encoded body is already decoded.
+   *
+   * @throws IOException if the request could not be sent or the response could not be read.
+   */
+  HttpResponse post(String url, Map<String, String> headers, RequestBody body) throws IOException;
+
+  /**
+   * Body of a request, written straight to the connection.
+   */
+  interface RequestBody {
+    String contentType();
+
+    /**
+     * @return The encoding the body is written in, such as "gzip", or null if it isn't encoded.
+     */
+    String contentEncoding();
+
+    void writeTo(OutputStream out) throws IOException;
+  }
+}
@@ -0,0 +1,219 @@
+package com.aptoide.iabexample.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * {@link HttpTransport} on top of {@link HttpURLConnection} that keeps connections alive between
+ * requests.
+ *
+ * HttpURLConnection already pools idle connections, as long as they are never disconnected and
+ * their response body is fully read and closed, which is what closing a {@link HttpResponse} does.
+ * All https connections share one {@link SSLSocketFactory}, and with it one TLS session cache, so
+ * a new connection to a known host resumes the previous TLS session instead of doing a full
+ * handshake. The number of concurrent connections per host is capped, with requests over the cap
+ * waiting for a connection to be released.
+ *
+ * Request bodies, which are small, are encoded in memory and sent with their length rather than
+ * chunked: some servers and proxies reject chunked requests, and HttpURLConnection only retries a
+ * request transparently on a stale pooled connection when the body length is known. Gzip encoded
+ * responses are requested and decoded.
+ */
+public class KeepAliveHttpTransport implements HttpTransport {
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 5;
+  public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15000;
+  public static final int DEFAULT_READ_TIMEOUT_MILLIS = 20000;
+  private static final int DRAIN_BUFFER_SIZE = 1024;
+  private static final int BODY_BUFFER_SIZE = 512;
+
+  private static KeepAliveHttpTransport defaultInstance;
+
+  private final int maxConnectionsPerHost;
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+  private final SSLSocketFactory sslSocketFactory;
+  private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+  /**
+   * @param maxConnectionsPerHost Maximum number of connections open at the same time to a host.
+   * This is also the size of the process wide idle connection pool, so it should be the same for
+   * every instance.
+   * @param connectTimeoutMillis Timeout to establish a connection.
+   * @param readTimeoutMillis Timeout waiting for data from an established connection.
+   */
+  public KeepAliveHttpTransport(int maxConnectionsPerHost, int connectTimeoutMillis,
+      int readTimeoutMillis) {
+    if (maxConnectionsPerHost <= 0) {
+      throw new IllegalArgumentException("maxConnectionsPerHost must be positive");
+    }
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+    this.sslSocketFactory = createSslSocketFactory();
+    // HttpURLConnection reads these once, when its connection pool is first created
+    System.setProperty("http.keepAlive", "true");
+    System.setProperty("http.maxConnections", String.valueOf(maxConnectionsPerHost));
+  }
+
+  /**
+   * @return A transport shared by the whole process, with the default settings.
+   */
+  public static synchronized KeepAliveHttpTransport getDefault() {
+    if (defaultInstance == null) {
+      defaultInstance = new KeepAliveHttpTransport(DEFAULT_MAX_CONNECTIONS_PER_HOST,
+          DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+    return defaultInstance;
+  }
+
+  private static SSLSocketFactory createSslSocketFactory() {
+    try {
+      SSLContext sslContext = SSLContext.getInstance("TLS");
+      sslContext.init(null, null, null);
+      return sslContext.getSocketFactory();
+    } catch (GeneralSecurityException e) {
+      return HttpsURLConnection.getDefaultSSLSocketFactory();
+    }
+  }
+
+  @Override public HttpResponse post(String url, Map<String, String> headers, RequestBody body)
+      throws IOException {
+    URL requestUrl = new URL(url);
+    Semaphore permits = getPermits(requestUrl);
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread()
+          .interrupt();
+      throw new IOException("Interrupted while waiting for a connection to " + url, e);
+    }
+
+    HttpURLConnection connection = null;
+    try {
+      connection = (HttpURLConnection) requestUrl.openConnection();
+      if (connection instanceof HttpsURLConnection) {
+        ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+      }
+      connection.setConnectTimeout(connectTimeoutMillis);
+      connection.setReadTimeout(readTimeoutMillis);
+      connection.setRequestMethod("POST");
+      connection.setRequestProperty("Connection", "keep-alive");
+      connection.setRequestProperty("Content-Type", body.contentType());
+      if (body.contentEncoding() != null) {
+        connection.setRequestProperty("Content-Encoding", body.contentEncoding());
+      }
+      // Setting it explicitly turns off the transparent decoding done by some implementations
+      connection.setRequestProperty("Accept-Encoding", "gzip");
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        connection.setRequestProperty(header.getKey(), header.getValue());
+      }
+      connection.setDoOutput(true);
+      connection.setDoInput(true);
+      byte[] encodedBody = encode(body);
+      connection.setFixedLengthStreamingMode(encodedBody.length);
+
+      OutputStream out = connection.getOutputStream();
+      try {
+        out.write(encodedBody);
+        out.flush();
+      } finally {
+        out.close();
+      }
+
+      int code = connection.getResponseCode();
+      InputStream in = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+      if (in == null) {
+        in = new EmptyInputStream();
+      }
+      InputStream decoded = in;
+      if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+        decoded = new GZIPInputStream(in);
+      }
+      return new HttpResponse(code, connection.getResponseMessage(), decoded,
+          new ConnectionReleaser(in, decoded, permits));
+    } catch (IOException | RuntimeException e) {
+      // The connection is in an unknown state, so it must not go back to the pool
+      if (connection != null) {
+        connection.disconnect();
+      }
+      permits.release();
+      throw e;
+    }
+  }
+
+  private Semaphore getPermits(URL url) {
+    String host = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+    Semaphore permits = hostPermits.get(host);
+    if (permits == null) {
+      Semaphore newPermits = new Semaphore(maxConnectionsPerHost, true);
+      permits = hostPermits.putIfAbsent(host, newPermits);
+      if (permits == null) {
+        permits = newPermits;
+      }
+    }
+    return permits;
+  }
+
+  private static byte[] encode(RequestBody body) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(BODY_BUFFER_SIZE);
+    body.writeTo(out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Reads whatever is left of the response so the connection can be reused, then gives the host
+   * permit back. The raw stream is drained rather than the decoded one, so the end of the response
+   * is reached even if the decoded body was not read to its end.
+   */
+  private static final class ConnectionReleaser implements Closeable {
+    private final InputStream in;
+    private final InputStream body;
+    private final Semaphore permits;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    ConnectionReleaser(InputStream in, InputStream body, Semaphore permits) {
+      this.in = in;
+      this.body = body;
+      this.permits = permits;
+    }
+
+    @Override public void close() throws IOException {
+      if (!released.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+        while (in.read(buffer) != -1) {
+          // Drain the body, otherwise the connection is not returned to the pool
+        }
+      } finally {
+        try {
+          // Also closes the raw stream
+          body.close();
+        } finally {
+          permits.release();
+        }
+      }
+    }
+  }
+
+  private static final class EmptyInputStream extends InputStream {
+    @Override public int read() {
+      return -1;
+    }
+  }
+}
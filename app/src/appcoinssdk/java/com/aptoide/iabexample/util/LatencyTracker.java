@@ -0,0 +1,49 @@
+package com.aptoide.iabexample.util;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the most recent calls and computes percentiles over them.
+ */
+class LatencyTracker {
+  private final long[] samples;
+  private final int minSamples;
+  private int next;
+  private int count;
+
+  /**
+   * @param capacity Number of recent latencies kept.
+   * @param minSamples Number of latencies needed before percentiles are computed.
+   */
+  LatencyTracker(int capacity, int minSamples) {
+    this.samples = new long[capacity];
+    this.minSamples = minSamples;
+  }
+
+  synchronized void record(long latencyMillis) {
+    samples[next] = latencyMillis;
+    next = (next + 1) % samples.length;
+    if (count < samples.length) {
+      count++;
+    }
+  }
+
+  /**
+   * @param percentile The percentile, between 0 and 1.
+   *
+   * @return The latency below which that share of the recent calls finished, or -1 if there are
+   * not enough samples yet.
+   */
+  long getPercentile(double percentile) {
+    long[] sorted;
+    synchronized (this) {
+      if (count < minSamples) {
+        return -1;
+      }
+      sorted = Arrays.copyOf(samples, count);
+    }
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(percentile * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+  }
+}
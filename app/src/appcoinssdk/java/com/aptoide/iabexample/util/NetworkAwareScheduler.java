@@ -0,0 +1,194 @@
+package com.aptoide.iabexample.util;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs network work according to how urgent it is and how good the connection is.
+ *
+ * {@link Priority#CRITICAL} work, such as verifying a purchase the user is waiting for, runs right
+ * away whatever the state of the network. {@link Priority#DEFERRABLE} work, such as catalog
+ * refreshes, is held until the connection is {@link ConnectivityMonitor.Quality#GOOD} and no
+ * critical work was submitted for a short while, so it never competes with critical work for a
+ * poor link. So that it isn't held forever on a device that is only ever on metered networks,
+ * deferrable work runs on any connection once it has waited long enough.
+ *
+ * Deferred work only lives in memory. Tasks run on a single background thread, so they should
+ * only start their work, not wait for it. Tasks submitted after {@link #release()} are dropped.
+ */
+public class NetworkAwareScheduler {
+  public static final long DEFAULT_MAX_DEFERRAL_MILLIS = TimeUnit.HOURS.toMillis(6);
+  // How long deferrable work stays away after critical work is submitted
+  private static final long CRITICAL_QUIET_PERIOD_MILLIS = 2000;
+  private static final String TAG = NetworkAwareScheduler.class.getSimpleName();
+
+  private final ConnectivityMonitor connectivityMonitor;
+  private final ScheduledExecutorService executor;
+  private final long maxDeferralMillis;
+  private final Deque<DeferredTask> deferred = new ArrayDeque<>();
+  private long lastCriticalMillis;
+  private ScheduledFuture<?> nextRun;
+  private volatile boolean released;
+
+  public NetworkAwareScheduler(Context context) {
+    this(context, DEFAULT_MAX_DEFERRAL_MILLIS);
+  }
+
+  /**
+   * @param maxDeferralMillis How long deferrable work waits for a good connection before running
+   * on whatever connection there is.
+   */
+  public NetworkAwareScheduler(Context context, long maxDeferralMillis) {
+    this.maxDeferralMillis = maxDeferralMillis;
+    this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, TAG);
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.connectivityMonitor =
+        new ConnectivityMonitor(context, quality -> execute(this::runDeferred));
+    this.connectivityMonitor.start();
+  }
+
+  /**
+   * Runs the task now if it is critical, or once conditions allow if it is deferrable.
+   */
+  public void submit(Priority priority, Runnable task) {
+    if (priority == Priority.CRITICAL) {
+      synchronized (this) {
+        lastCriticalMillis = SystemClock.elapsedRealtime();
+      }
+      execute(task);
+      return;
+    }
+    synchronized (this) {
+      if (released) {
+        Log.w(TAG, "Released, dropping deferrable task");
+        return;
+      }
+      deferred.add(new DeferredTask(task, SystemClock.elapsedRealtime()));
+    }
+    execute(this::runDeferred);
+  }
+
+  /**
+   * @return The quality of the active network.
+   */
+  public ConnectivityMonitor.Quality getQuality() {
+    return connectivityMonitor.getQuality();
+  }
+
+  /**
+   * Stops watching connectivity and drops any deferred work.
+   */
+  public void release() {
+    synchronized (this) {
+      released = true;
+      deferred.clear();
+    }
+    connectivityMonitor.stop();
+    executor.shutdownNow();
+  }
+
+  private void execute(Runnable task) {
+    if (released) {
+      Log.w(TAG, "Released, dropping task");
+      return;
+    }
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      // Released in the meantime
+      Log.w(TAG, "Released, dropping task");
+    }
+  }
+
+  /**
+   * Runs the deferred tasks that are allowed to run now, and schedules another look for when the
+   * rest may be.
+   */
+  private void runDeferred() {
+    ConnectivityMonitor.Quality quality = connectivityMonitor.getQuality();
+    while (true) {
+      DeferredTask task;
+      long waitMillis;
+      synchronized (this) {
+        task = deferred.peek();
+        if (task == null) {
+          return;
+        }
+        waitMillis = getWaitMillis(task, quality, SystemClock.elapsedRealtime());
+        if (waitMillis == 0) {
+          deferred.poll();
+        } else {
+          scheduleRun(waitMillis);
+        }
+      }
+      if (waitMillis > 0) {
+        return;
+      }
+      try {
+        task.task.run();
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Deferred task failed", e);
+      }
+    }
+  }
+
+  /**
+   * @return How long the task must still wait, 0 if it can run now, or {@link Long#MAX_VALUE} if
+   * it must wait for a change in connectivity.
+   */
+  private long getWaitMillis(DeferredTask task, ConnectivityMonitor.Quality quality, long now) {
+    long quietMillis = lastCriticalMillis + CRITICAL_QUIET_PERIOD_MILLIS - now;
+    if (quietMillis > 0) {
+      return quietMillis;
+    }
+    if (quality == ConnectivityMonitor.Quality.GOOD) {
+      return 0;
+    }
+    if (quality == ConnectivityMonitor.Quality.NONE) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, task.submittedMillis + maxDeferralMillis - now);
+  }
+
+  private void scheduleRun(long delayMillis) {
+    if (nextRun != null) {
+      nextRun.cancel(false);
+      nextRun = null;
+    }
+    if (delayMillis != Long.MAX_VALUE && !released) {
+      try {
+        nextRun = executor.schedule(this::runDeferred, delayMillis, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        // Released in the meantime
+      }
+    }
+  }
+
+  public enum Priority {
+    /** Work the user is waiting for. */
+    CRITICAL,
+    /** Work that can wait for a good connection. */
+    DEFERRABLE
+  }
+
+  private static final class DeferredTask {
+    final Runnable task;
+    final long submittedMillis;
+
+    DeferredTask(Runnable task, long submittedMillis) {
+      this.task = task;
+      this.submittedMillis = submittedMillis;
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package com.aptoide.iabexample.util;
+
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent queue of purchases whose verification couldn't be completed, kept so they can be
+ * verified once the backend is reachable again, even after the process dies.
+ *
+ * The queue is an append-only file of records: adding a purchase appends an add record, every
+ * failed attempt to verify it appends an attempt record, and removing it appends a remove
+ * record. The file is replayed on first use, and a record cut short by a crash is dropped. Once
+ * most of the records are obsolete the file is compacted into a new one holding only the pending
+ * purchases, which then replaces the old file atomically.
+ */
+public class PendingVerificationQueue {
+  private static final String TAG = PendingVerificationQueue.class.getSimpleName();
+  private static final byte RECORD_ADD = 1;
+  private static final byte RECORD_REMOVE = 2;
+  private static final byte RECORD_ATTEMPT = 3;
+  private static final int MIN_RECORDS_TO_COMPACT = 64;
+
+  private final File file;
+  // Pending purchases, oldest first, with the number of failed attempts to verify them
+  private final Map<PurchaseVerificationRequest, Integer> pending = new LinkedHashMap<>();
+  private boolean loaded;
+  private int records;
+
+  /**
+   * @param file The file backing the queue. It is created when the first purchase is added.
+   */
+  public PendingVerificationQueue(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Adds a purchase to the queue, unless it is already there.
+   *
+   * @return true if the purchase was added, false if it was already in the queue.
+   */
+  public synchronized boolean add(PurchaseVerificationRequest request) {
+    ensureLoaded();
+    if (pending.containsKey(request)) {
+      return false;
+    }
+    pending.put(request, 0);
+    append(RECORD_ADD, request);
+    return true;
+  }
+
+  /**
+   * Counts a failed attempt to verify a queued purchase.
+   *
+   * @return The number of failed attempts so far, or 0 if the purchase isn't in the queue.
+   */
+  public synchronized int addAttempt(PurchaseVerificationRequest request) {
+    ensureLoaded();
+    Integer attempts = pending.get(request);
+    if (attempts == null) {
+      return 0;
+    }
+    pending.put(request, attempts + 1);
+    append(RECORD_ATTEMPT, request);
+    return attempts + 1;
+  }
+
+  /**
+   * Removes a purchase from the queue, if it is there.
+   */
+  public synchronized void remove(PurchaseVerificationRequest request) {
+    ensureLoaded();
+    if (pending.remove(request) != null) {
+      append(RECORD_REMOVE, request);
+      compactIfNeeded();
+    }
+  }
+
+  /**
+   * @return The pending purchases, oldest first.
+   */
+  public synchronized List<PurchaseVerificationRequest> getAll() {
+    ensureLoaded();
+    return new ArrayList<>(pending.keySet());
+  }
+
+  public synchronized boolean isEmpty() {
+    ensureLoaded();
+    return pending.isEmpty();
+  }
+
+  private void ensureLoaded() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    long fileLength = file.length();
+    long validLength = 0;
+    boolean partialRecord = false;
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      while (true) {
+        byte type = in.readByte();
+        PurchaseVerificationRequest request =
+            new PurchaseVerificationRequest(in.readUTF(), in.readUTF());
+        Integer attempts = pending.get(request);
+        if (type == RECORD_ADD) {
+          if (attempts == null) {
+            pending.put(request, 0);
+          }
+        } else if (type == RECORD_ATTEMPT) {
+          if (attempts != null) {
+            pending.put(request, attempts + 1);
+          }
+        } else {
+          pending.remove(request);
+        }
+        records++;
+        validLength = fileLength - in.available();
+      }
+    } catch (FileNotFoundException e) {
+      return;
+    } catch (EOFException e) {
+      // End of the file, or a record cut short by a crash
+      partialRecord = validLength < fileLength;
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to read pending verifications", e);
+    } finally {
+      closeQuietly(in);
+    }
+    if (partialRecord) {
+      truncate(validLength);
+    }
+  }
+
+  private void append(byte type, PurchaseVerificationRequest request) {
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+      writeRecord(out, type, request);
+      out.flush();
+      records++;
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to persist pending verification " + request, e);
+    } finally {
+      closeQuietly(out);
+    }
+  }
+
+  private void compactIfNeeded() {
+    if (records < MIN_RECORDS_TO_COMPACT) {
+      return;
+    }
+    int liveRecords = 0;
+    for (int attempts : pending.values()) {
+      liveRecords += 1 + attempts;
+    }
+    if (records < 2 * liveRecords) {
+      return;
+    }
+    File compacted = new File(file.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      FileOutputStream fileOut = new FileOutputStream(compacted);
+      out = new DataOutputStream(new BufferedOutputStream(fileOut));
+      int compactedRecords = 0;
+      for (Map.Entry<PurchaseVerificationRequest, Integer> entry : pending.entrySet()) {
+        writeRecord(out, RECORD_ADD, entry.getKey());
+        for (int attempt = 0; attempt < entry.getValue(); attempt++) {
+          writeRecord(out, RECORD_ATTEMPT, entry.getKey());
+        }
+        compactedRecords += 1 + entry.getValue();
+      }
+      out.flush();
+      fileOut.getFD()
+          .sync();
+      out.close();
+      out = null;
+      if (compacted.renameTo(file)) {
+        records = compactedRecords;
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to compact pending verifications", e);
+    } finally {
+      closeQuietly(out);
+      compacted.delete();
+    }
+  }
+
+  private void truncate(long length) {
+    RandomAccessFile randomAccessFile = null;
+    try {
+      randomAccessFile = new RandomAccessFile(file, "rw");
+      randomAccessFile.setLength(length);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to drop a partial pending verification record", e);
+    } finally {
+      closeQuietly(randomAccessFile);
+    }
+  }
+
+  private static void writeRecord(DataOutputStream out, byte type,
+      PurchaseVerificationRequest request) throws IOException {
+    out.writeByte(type);
+    out.writeUTF(request.getSku());
+    out.writeUTF(request.getToken());
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        // Nothing left to do
+      }
+    }
+  }
+}
@@ -1,75 +1,692 @@
 package com.aptoide.iabexample.util;
 
+import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 import com.aptoide.iabexample.BuildConfig;
 import com.google.gson.Gson;
-import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import org.json.JSONObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class PurchaseService {
+  public static final int DEFAULT_MAX_BATCH_SIZE = 20;
+  public static final long DEFAULT_BATCH_LINGER_MILLIS = 200;
+  // Spreads the drains of all clients that got their connectivity back at the same time
+  private static final long MAX_DRAIN_DELAY_MILLIS = 5000;
+  private static final String PENDING_VERIFICATIONS_FILE = "pending_verifications";
+  // Failed attempts after which a queued purchase is given up on
+  private static final int MAX_PENDING_ATTEMPTS = 10;
   private static final String TAG = PurchaseService.class.getSimpleName();
+  private static final Map<String, String> HEADERS =
+      Collections.singletonMap("Accept", "application/json");
 
   private final String baseHost;
   private final String applicationPackageName;
   private final PurchaseValidatorListener listener;
   private final Gson gson;
+  private final AsyncHttpTransport transport;
+  private final ScheduledExecutorService scheduler;
+  private final AtomicBoolean draining = new AtomicBoolean();
+  private volatile PurchaseVerificationBatcher batcher;
+  private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+  private volatile VerificationResultStore resultStore;
+  private volatile RetryPolicy retryPolicy = RetryPolicy.createDefault();
+  private volatile CircuitBreaker circuitBreaker = CircuitBreaker.createDefault();
+  private volatile HedgingPolicy hedgingPolicy;
+  private volatile RequestLimiter requestLimiter;
+  // Cleared the first time the backend shows it doesn't know the batch endpoint
+  private volatile boolean batchSupported = true;
+  private volatile boolean gzipRequests;
+  private volatile PendingVerificationQueue pendingQueue;
+  private ConnectivityMonitor connectivityMonitor;
+  private volatile NetworkAwareScheduler networkScheduler;
+  private volatile boolean released;
+  // Purchases being verified, with the number of callers waiting for each result
+  private final Map<PurchaseVerificationRequest, Integer> inFlight = new HashMap<>();
 
   public PurchaseService(String baseHost, String applicationPackageName,
       PurchaseValidatorListener listener, Gson gson) {
+    this(baseHost, applicationPackageName, listener, gson,
+        ExecutorAsyncHttpTransport.getDefault());
+  }
+
+  /**
+   * @param transport The transport used to reach the verification backend. Connections are kept
+   * alive by the default {@link KeepAliveHttpTransport}. Its requests are run on a bounded pool of
+   * threads.
+   */
+  public PurchaseService(String baseHost, String applicationPackageName,
+      PurchaseValidatorListener listener, Gson gson, HttpTransport transport) {
+    this(baseHost, applicationPackageName, listener, gson,
+        new ExecutorAsyncHttpTransport(transport,
+            KeepAliveHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST));
+  }
+
+  /**
+   * Verifications never block a thread of their own: they are started from a single background
+   * thread, the requests are left to the transport and retries are scheduled instead of waited
+   * for. The threads used are the ones of that background thread and of the transport, however
+   * many purchases are being verified.
+   *
+   * @param transport The transport used to reach the verification backend.
+   */
+  public PurchaseService(String baseHost, String applicationPackageName,
+      PurchaseValidatorListener listener, Gson gson, AsyncHttpTransport transport) {
     this.baseHost = baseHost;
     this.applicationPackageName = applicationPackageName;
     this.listener = listener;
     this.gson = gson;
+    this.transport = transport;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, TAG);
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.batcher = createBatcher(DEFAULT_MAX_BATCH_SIZE, DEFAULT_BATCH_LINGER_MILLIS);
+    this.requestLimiter = new RequestLimiter(RequestLimiter.DEFAULT_REQUESTS_PER_SECOND,
+        RequestLimiter.DEFAULT_BURST, RequestLimiter.DEFAULT_MAX_IN_FLIGHT,
+        RequestLimiter.DEFAULT_MAX_QUEUED, scheduler);
+  }
+
+  /**
+   * Configures how {@link #verifyPurchases} groups purchases into batch requests.
+   *
+   * @param maxBatchSize Maximum number of purchases sent in one request.
+   * @param lingerMillis How long to wait for more purchases before sending a batch that isn't
+   * full.
+   */
+  public void setBatching(int maxBatchSize, long lingerMillis) {
+    PurchaseVerificationBatcher previous = batcher;
+    this.maxBatchSize = maxBatchSize;
+    batcher = createBatcher(maxBatchSize, lingerMillis);
+    previous.flush();
+  }
+
+  /**
+   * Sets whether request bodies are gzip compressed. This should only be turned on if the backend
+   * accepts compressed requests. Responses are compressed whenever the backend supports it.
+   */
+  public void setGzipRequests(boolean gzipRequests) {
+    this.gzipRequests = gzipRequests;
+  }
+
+  /**
+   * Configures how requests to the backend are limited. Every request, including each retry, is
+   * subject to these limits. Requests over them wait in a queue, and fail with a
+   * {@link RequestRejectedException} once the queue is full.
+   *
+   * @param requestsPerSecond Sustained rate of requests.
+   * @param burst Number of requests that can be sent at once after a quiet period.
+   * @param maxInFlight Maximum number of requests waiting for an answer at the same time.
+   * @param maxQueued Maximum number of requests waiting to be sent.
+   */
+  public void setRequestLimits(double requestsPerSecond, int burst, int maxInFlight,
+      int maxQueued) {
+    requestLimiter =
+        new RequestLimiter(requestsPerSecond, burst, maxInFlight, maxQueued, scheduler);
+  }
+
+  /**
+   * @return The queue depth, wait times and counts of the requests limited by
+   * {@link #setRequestLimits}.
+   */
+  public RequestLimiter.Metrics getRequestLimiterMetrics() {
+    return requestLimiter.getMetrics();
+  }
+
+  /**
+   * Sets where verification results are kept. Purchases with a stored result are answered from
+   * the store and never sent to the backend. Expired results are removed in the background.
+   *
+   * @param resultStore The store to use, or null to always ask the backend.
+   */
+  public void setResultStore(VerificationResultStore resultStore) {
+    this.resultStore = resultStore;
+    if (resultStore != null && !released) {
+      scheduler.execute(resultStore::removeExpired);
+    }
+  }
+
+  /**
+   * Sets how failed checks are retried. Checks are retried by default.
+   */
+  public void setRetryPolicy(RetryPolicy retryPolicy) {
+    this.retryPolicy = retryPolicy;
+  }
+
+  /**
+   * Sets the circuit breaker that stops calls to the backend after repeated failures.
+   */
+  public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  /**
+   * Turns on hedging of single purchase checks: a check that is slower than most recent ones gets
+   * a second identical request, and the first answer is used. Checks are idempotent, so this is
+   * safe, but it adds some load to the backend, capped by the policy. Off by default.
+   *
+   * @param hedgingPolicy The policy deciding when to hedge, or null to turn hedging off.
+   */
+  public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+    this.hedgingPolicy = hedgingPolicy;
   }
 
+  /**
+   * Callers can check the breaker state to skip verifications that aren't urgent while the
+   * backend is failing. Verifications requested while the breaker is open fail right away with a
+   * {@link CircuitBreakerOpenException}.
+   *
+   * @return The state of the circuit breaker guarding the verification backend.
+   */
+  public CircuitBreaker.State getCircuitBreakerState() {
+    return circuitBreaker.getState();
+  }
+
+  /**
+   * Sets the scheduler that decides when verifications run, see
+   * {@link #verifyPurchase(String, String, NetworkAwareScheduler.Priority)}. Without one, every
+   * verification starts right away.
+   */
+  public void setNetworkScheduler(NetworkAwareScheduler networkScheduler) {
+    this.networkScheduler = networkScheduler;
+  }
+
+  /**
+   * Keeps purchases whose verification failed because the backend couldn't be reached in a
+   * persistent queue. The queue is drained in batches in the background whenever connectivity
+   * comes back, once the circuit breaker lets requests through again if it was open, and when
+   * this method is called, so purchases left from a previous run are verified too. Results are
+   * delivered through the {@link PurchaseValidatorListener}. The error that caused a purchase to
+   * be queued is still reported when it happens, but later failures of a queued purchase are not
+   * reported again.
+   *
+   * Call {@link #release()} when this service is no longer needed.
+   */
+  public synchronized void enableOfflineQueue(Context context) {
+    if (pendingQueue != null) {
+      return;
+    }
+    pendingQueue =
+        new PendingVerificationQueue(new File(context.getFilesDir(), PENDING_VERIFICATIONS_FILE));
+    connectivityMonitor = new ConnectivityMonitor(context, quality -> {
+      if (quality != ConnectivityMonitor.Quality.NONE) {
+        scheduleDrain();
+      }
+    });
+    connectivityMonitor.start();
+    scheduleDrain();
+  }
+
+  /**
+   * Stops watching connectivity and releases the background thread. Verifications already sent
+   * still complete, but they are not retried. Verifications requested afterwards are ignored.
+   */
+  public synchronized void release() {
+    released = true;
+    if (connectivityMonitor != null) {
+      connectivityMonitor.stop();
+      connectivityMonitor = null;
+    }
+    scheduler.shutdown();
+  }
+
+  private PurchaseVerificationBatcher createBatcher(int maxBatchSize, long lingerMillis) {
+    return new PurchaseVerificationBatcher(maxBatchSize, lingerMillis, scheduler,
+        batch -> execute(batch, () -> verifyBatchNow(batch)));
+  }
+
+  /**
+   * Verifies a purchase in the background. If the same purchase is already being verified, no new
+   * request is made and the listener is called once more with the result of the running one.
+   */
   public void verifyPurchase(String sku, String token) {
+    verifyPurchase(sku, token, NetworkAwareScheduler.Priority.CRITICAL);
+  }
+
+  /**
+   * Verifies a purchase in the background, as {@link #verifyPurchase(String, String)} does. If a
+   * {@link NetworkAwareScheduler} is set, deferrable verifications, like re-checking purchases
+   * that were already granted, wait for a good connection and let critical ones go first.
+   */
+  public void verifyPurchase(String sku, String token, NetworkAwareScheduler.Priority priority) {
+    NetworkAwareScheduler networkScheduler = this.networkScheduler;
+    if (networkScheduler != null) {
+      networkScheduler.submit(priority, () -> startVerification(sku, token));
+    } else {
+      startVerification(sku, token);
+    }
+  }
+
+  private void startVerification(String sku, String token) {
     if (!BuildConfig.DEBUG) {
-      Thread thread = new Thread(() -> {
-        HttpURLConnection conn = null;
+      PurchaseVerificationRequest request = new PurchaseVerificationRequest(sku, token);
+      if (isReleased(Collections.singletonList(request)) || !startInFlight(request)) {
+        return;
+      }
+      if (circuitBreaker.getState() == CircuitBreaker.State.OPEN) {
+        CircuitBreakerOpenException error =
+            new CircuitBreakerOpenException(circuitBreaker.getRetryAfterMillis());
+        execute(Collections.singletonList(request), () -> deliverError(request, error));
+        return;
+      }
+      execute(Collections.singletonList(request), () -> verifyNow(sku, token));
+    } else {
+      listener.onPurchaseValidationResult(sku, token, true);
+    }
+  }
+
+  /**
+   * Verifies several purchases, packing them into batch requests. Purchases from consecutive calls
+   * are grouped together as configured by {@link #setBatching}. Each purchase gets its own result
+   * through the {@link PurchaseValidatorListener}. If the backend doesn't support batch requests,
+   * the purchases are verified one by one. Purchases that are already being verified are not sent
+   * again, they share the result of the running verification.
+   *
+   * @param requests The purchases to verify.
+   */
+  public void verifyPurchases(List<PurchaseVerificationRequest> requests) {
+    if (!BuildConfig.DEBUG) {
+      if (isReleased(requests)) {
+        return;
+      }
+      List<PurchaseVerificationRequest> started = startInFlight(requests);
+      if (started.isEmpty()) {
+        return;
+      }
+      if (circuitBreaker.getState() == CircuitBreaker.State.OPEN) {
+        CircuitBreakerOpenException error =
+            new CircuitBreakerOpenException(circuitBreaker.getRetryAfterMillis());
+        execute(started, () -> notifyErrors(started, error));
+        return;
+      }
+      PurchaseVerificationBatcher batcher = this.batcher;
+      for (int i = 0; i < started.size(); i++) {
         try {
-          URL url = new URL(baseHost + "/purchase/" + applicationPackageName + "/check");
-          conn = (HttpURLConnection) url.openConnection();
-          conn.setRequestMethod("POST");
-          conn.setRequestProperty("Content-Type", "application/json;charset=UTF-8");
-          conn.setRequestProperty("Accept", "application/json");
-          conn.setDoOutput(true);
-          conn.setDoInput(true);
-          JSONObject jsonParam = new JSONObject();
-          jsonParam.put("token", token);
-          jsonParam.put("product", sku);
-          Log.i("JSON", jsonParam.toString());
-          DataOutputStream os = new DataOutputStream(conn.getOutputStream());
-          os.writeBytes(jsonParam.toString());
-          os.flush();
-          os.close();
-          int responseCode = conn.getResponseCode();
-          if (responseCode == 200) {
+          batcher.add(started.get(i));
+        } catch (RejectedExecutionException e) {
+          // Released while the purchases were being added
+          dropInFlight(started.subList(i, started.size()));
+          return;
+        }
+      }
+    } else {
+      for (PurchaseVerificationRequest request : requests) {
+        listener.onPurchaseValidationResult(request.getSku(), request.getToken(), true);
+      }
+    }
+  }
+
+  private void verifyNow(String sku, String token) {
+    PurchaseVerificationRequest request = new PurchaseVerificationRequest(sku, token);
+    VerificationResultStore resultStore = this.resultStore;
+    Boolean storedResult = resultStore != null ? resultStore.get(sku, token) : null;
+    if (storedResult != null) {
+      deliverResult(request, storedResult, false);
+      return;
+    }
+    ResultCallback<Boolean> callback = new ResultCallback<Boolean>() {
+      @Override public void onResult(Boolean isValid) {
+        deliverResult(request, isValid, true);
+      }
+
+      @Override public void onError(Exception error) {
+        error.printStackTrace();
+        deliverError(request, error);
+      }
+    };
+    HedgingPolicy hedgingPolicy = this.hedgingPolicy;
+    if (hedgingPolicy == null) {
+      callBackend(attemptCallback -> sendCheck(request, attemptCallback), callback);
+    } else {
+      new HedgedCheck(request, hedgingPolicy, callback).start();
+    }
+  }
+
+  private boolean isReleased(List<PurchaseVerificationRequest> requests) {
+    if (released) {
+      Log.w(TAG, "Service released, ignoring the verification of " + requests);
+    }
+    return released;
+  }
+
+  /**
+   * Runs a task for purchases registered as in flight on the background thread, unregistering them
+   * if the service was released in the meantime.
+   */
+  private void execute(List<PurchaseVerificationRequest> requests, Runnable task) {
+    try {
+      scheduler.execute(task);
+    } catch (RejectedExecutionException e) {
+      dropInFlight(requests);
+    }
+  }
+
+  private void dropInFlight(List<PurchaseVerificationRequest> requests) {
+    Log.w(TAG, "Service released, dropping the verification of " + requests);
+    for (PurchaseVerificationRequest request : requests) {
+      finishInFlight(request);
+    }
+  }
+
+  /**
+   * Registers a caller waiting for the verification of a purchase.
+   *
+   * @return true if the purchase must be verified, false if it is already being verified and the
+   * caller will get the result of that verification.
+   */
+  private boolean startInFlight(PurchaseVerificationRequest request) {
+    synchronized (inFlight) {
+      Integer callers = inFlight.get(request);
+      inFlight.put(request, callers == null ? 1 : callers + 1);
+      return callers == null;
+    }
+  }
+
+  /**
+   * @return The requests that must be verified, leaving out the ones already being verified.
+   */
+  private List<PurchaseVerificationRequest> startInFlight(
+      List<PurchaseVerificationRequest> requests) {
+    List<PurchaseVerificationRequest> started = new ArrayList<>(requests.size());
+    for (PurchaseVerificationRequest request : requests) {
+      if (startInFlight(request)) {
+        started.add(request);
+      }
+    }
+    return started;
+  }
+
+  /**
+   * @return The number of callers waiting for the result of the verification.
+   */
+  private int finishInFlight(PurchaseVerificationRequest request) {
+    synchronized (inFlight) {
+      Integer callers = inFlight.remove(request);
+      return callers == null ? 1 : callers;
+    }
+  }
+
+  private void deliverResult(PurchaseVerificationRequest request, boolean isValid,
+      boolean store) {
+    VerificationResultStore resultStore = this.resultStore;
+    if (store && resultStore != null) {
+      resultStore.put(request.getSku(), request.getToken(), isValid);
+    }
+    PendingVerificationQueue pendingQueue = this.pendingQueue;
+    if (pendingQueue != null) {
+      pendingQueue.remove(request);
+    }
+    for (int callers = finishInFlight(request); callers > 0; callers--) {
+      listener.onPurchaseValidationResult(request.getSku(), request.getToken(), isValid);
+    }
+  }
+
+  /**
+   * Reports an error, queuing the purchase for a later attempt if the error may go away by
+   * itself. Purchases that were already queued have had an error reported before, so they are
+   * not reported again, unless they are given up on: when the error won't go away, or after too
+   * many attempts.
+   */
+  private void deliverError(PurchaseVerificationRequest request, Exception error) {
+    int callers = finishInFlight(request);
+    PendingVerificationQueue pendingQueue = this.pendingQueue;
+    if (pendingQueue != null) {
+      if (!isTransient(error)) {
+        pendingQueue.remove(request);
+      } else if (!pendingQueue.add(request)) {
+        if (pendingQueue.addAttempt(request) < MAX_PENDING_ATTEMPTS) {
+          return;
+        }
+        Log.w(TAG, "Giving up on the verification of " + request);
+        pendingQueue.remove(request);
+      }
+    }
+    for (; callers > 0; callers--) {
+      listener.onPurchaseValidationError(request.getSku(), request.getToken(), error);
+    }
+  }
+
+  private boolean isTransient(Exception error) {
+    return error instanceof CircuitBreakerOpenException
+        || error instanceof RequestRejectedException
+        || retryPolicy.isRetryable(error);
+  }
+
+  private void scheduleDrain() {
+    scheduleDrain(0);
+  }
+
+  /**
+   * @param minDelayMillis How long to wait at least, before the random delay that spreads drains.
+   */
+  private void scheduleDrain(long minDelayMillis) {
+    if (pendingQueue == null || BuildConfig.DEBUG || scheduler.isShutdown()) {
+      return;
+    }
+    long delay = minDelayMillis + ThreadLocalRandom.current()
+        .nextLong(MAX_DRAIN_DELAY_MILLIS + 1);
+    try {
+      scheduler.schedule(() -> {
+        if (draining.compareAndSet(false, true)) {
+          drainNow();
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // The service was released
+    }
+  }
+
+  private void drainNow() {
+    try {
+      List<PurchaseVerificationRequest> queued = pendingQueue.getAll();
+      int batchSize = maxBatchSize;
+      for (int start = 0; start < queued.size(); start += batchSize) {
+        if (circuitBreaker.getState() == CircuitBreaker.State.OPEN) {
+          // Nothing is sent, so no attempt is counted. Whatever is left stays queued and is
+          // drained once the breaker lets requests through again.
+          scheduleDrain(circuitBreaker.getRetryAfterMillis());
+          return;
+        }
+        // Purchases that are already being verified get their result from that verification
+        List<PurchaseVerificationRequest> batch =
+            startInFlight(queued.subList(start, Math.min(start + batchSize, queued.size())));
+        if (!batch.isEmpty()) {
+          verifyBatchNow(batch);
+        }
+      }
+    } finally {
+      draining.set(false);
+    }
+  }
+
+  private void verifyBatchNow(List<PurchaseVerificationRequest> requests) {
+    List<PurchaseVerificationRequest> batch = removeStored(requests);
+    if (batch.isEmpty()) {
+      return;
+    }
+    if (batch.size() == 1 || !batchSupported) {
+      for (PurchaseVerificationRequest request : batch) {
+        verifyNow(request.getSku(), request.getToken());
+      }
+      return;
+    }
+    callBackend(callback -> checkBatch(batch, callback),
+        new ResultCallback<Map<PurchaseVerificationRequest, Boolean>>() {
+          @Override public void onResult(Map<PurchaseVerificationRequest, Boolean> results) {
+            for (PurchaseVerificationRequest request : batch) {
+              Boolean isValid = results.get(request);
+              if (isValid != null) {
+                deliverResult(request, isValid, true);
+              } else {
+                deliverError(request,
+                    new IllegalStateException("Batch response is missing this purchase"));
+              }
+            }
+          }
+
+          @Override public void onError(Exception error) {
+            if (error instanceof PurchaseVerificationException && isBatchUnsupported(
+                ((PurchaseVerificationException) error).getResponseCode())) {
+              Log.i(TAG, "Batch verification not supported by the backend. Verifying one by one.");
+              batchSupported = false;
+              verifyBatchNow(batch);
+            } else {
+              notifyErrors(batch, error);
+            }
+          }
+        });
+  }
+
+  /**
+   * Answers the requests that have a stored result.
+   *
+   * @return The requests that still need to be sent to the backend.
+   */
+  private List<PurchaseVerificationRequest> removeStored(
+      List<PurchaseVerificationRequest> requests) {
+    VerificationResultStore resultStore = this.resultStore;
+    if (resultStore == null) {
+      return requests;
+    }
+    List<PurchaseVerificationRequest> remaining = new ArrayList<>(requests.size());
+    for (PurchaseVerificationRequest request : requests) {
+      Boolean storedResult = resultStore.get(request.getSku(), request.getToken());
+      if (storedResult != null) {
+        deliverResult(request, storedResult, false);
+      } else {
+        remaining.add(request);
+      }
+    }
+    return remaining;
+  }
+
+  /**
+   * Makes a call to the backend through the circuit breaker, retrying it as allowed by the retry
+   * policy. Errors that aren't retryable mean the backend answered, so they don't count as
+   * failures for the breaker. Retries are scheduled on the background thread, so no thread waits
+   * for them.
+   */
+  private <T> void callBackend(BackendCall<T> call, ResultCallback<T> callback) {
+    callBackend(call, callback, retryPolicy, circuitBreaker, 1);
+  }
+
+  private <T> void callBackend(BackendCall<T> call, ResultCallback<T> callback,
+      RetryPolicy retryPolicy, CircuitBreaker circuitBreaker, int attempt) {
+    RequestLimiter requestLimiter = this.requestLimiter;
+    requestLimiter.submit(new RequestLimiter.Task() {
+      @Override public void run() {
+        callBackendNow(call, callback, retryPolicy, circuitBreaker, attempt, requestLimiter);
+      }
+
+      @Override public void reject(RequestRejectedException error) {
+        callback.onError(error);
+      }
+    });
+  }
+
+  private <T> void callBackendNow(BackendCall<T> call, ResultCallback<T> callback,
+      RetryPolicy retryPolicy, CircuitBreaker circuitBreaker, int attempt,
+      RequestLimiter requestLimiter) {
+    if (!circuitBreaker.allowRequest()) {
+      requestLimiter.release();
+      callback.onError(new CircuitBreakerOpenException(circuitBreaker.getRetryAfterMillis()));
+      return;
+    }
+    call.call(new ResultCallback<T>() {
+      @Override public void onResult(T result) {
+        requestLimiter.release();
+        circuitBreaker.onSuccess();
+        callback.onResult(result);
+      }
+
+      @Override public void onError(Exception error) {
+        requestLimiter.release();
+        if (!retryPolicy.isRetryable(error)) {
+          circuitBreaker.onSuccess();
+          callback.onError(error);
+          return;
+        }
+        circuitBreaker.onFailure();
+        if (attempt >= retryPolicy.getMaxAttempts()) {
+          callback.onError(error);
+          return;
+        }
+        long delay = retryPolicy.getDelayMillis(attempt);
+        Log.w(TAG, "Verification failed, retrying in " + delay + " ms", error);
+        try {
+          scheduler.schedule(
+              () -> callBackend(call, callback, retryPolicy, circuitBreaker, attempt + 1), delay,
+              TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+          // The service was released
+          callback.onError(error);
+        }
+      }
+    });
+  }
+
+  private void notifyErrors(List<PurchaseVerificationRequest> batch, Exception error) {
+    error.printStackTrace();
+    for (PurchaseVerificationRequest request : batch) {
+      deliverError(request, error);
+    }
+  }
+
+  private boolean isBatchUnsupported(int responseCode) {
+    return responseCode == 404 || responseCode == 405 || responseCode == 501;
+  }
+
+  private void sendCheck(PurchaseVerificationRequest request, ResultCallback<Boolean> callback) {
+    transport.post(baseHost + "/purchase/" + applicationPackageName + "/check", HEADERS,
+        PurchaseVerificationBody.single(request, gzipRequests),
+        new ResponseHandler<Boolean>(callback) {
+          @Override Boolean parse(HttpResponse response) throws IOException {
             PurchaseVerificationResponse purchaseVerificationResponse =
-                gson.fromJson(new InputStreamReader(conn.getInputStream()),
+                gson.fromJson(new InputStreamReader(response.getBody(), "UTF-8"),
                     PurchaseVerificationResponse.class);
             Log.i(TAG, purchaseVerificationResponse.toString());
-            listener.onPurchaseValidationResult(sku, token, purchaseVerificationResponse.getStatus()
-                == PurchaseVerificationResponse.Status.SUCCESS);
-          } else {
-            listener.onPurchaseValidationError(sku, token, new Exception(
-                "Response code: " + responseCode + "\n" + "Message: " + conn.getResponseMessage()));
+            return purchaseVerificationResponse.getStatus()
+                == PurchaseVerificationResponse.Status.SUCCESS;
           }
-        } catch (Exception e) {
-          listener.onPurchaseValidationError(sku, token, e);
-          e.printStackTrace();
-        } finally {
-          if (conn != null) {
-            conn.disconnect();
+        });
+  }
+
+  private void checkBatch(List<PurchaseVerificationRequest> batch,
+      ResultCallback<Map<PurchaseVerificationRequest, Boolean>> callback) {
+    transport.post(baseHost + "/purchase/" + applicationPackageName + "/check/batch", HEADERS,
+        PurchaseVerificationBody.batch(batch, gzipRequests),
+        new ResponseHandler<Map<PurchaseVerificationRequest, Boolean>>(callback) {
+          @Override Map<PurchaseVerificationRequest, Boolean> parse(HttpResponse response)
+              throws IOException {
+            BatchPurchaseVerificationResponse batchResponse =
+                gson.fromJson(new InputStreamReader(response.getBody(), "UTF-8"),
+                    BatchPurchaseVerificationResponse.class);
+            Log.i(TAG, batchResponse.toString());
+            Map<PurchaseVerificationRequest, Boolean> results = new HashMap<>();
+            if (batchResponse.getResults() != null) {
+              for (BatchPurchaseVerificationResponse.Result result : batchResponse.getResults()) {
+                results.put(
+                    new PurchaseVerificationRequest(result.getProduct(), result.getToken()),
+                    result.getStatus() == PurchaseVerificationResponse.Status.SUCCESS);
+              }
+            }
+            return results;
           }
-        }
-      });
-      thread.start();
-    } else {
-      listener.onPurchaseValidationResult(sku, token, true);
-    }
+        });
   }
 
   public interface PurchaseValidatorListener {
@@ -77,4 +694,183 @@ public class PurchaseService {
 
     void onPurchaseValidationError(String sku, String token, Throwable error);
   }
+
+  /**
+   * A single check that is sent again if it takes too long, completing with the first result. An
+   * error only completes it once no other request is left that could still succeed.
+   *
+   * The hedge is a request to the backend like any other: it goes through the request limiter and
+   * the circuit breaker, and holds its own slot of the limiter until it is answered, even once the
+   * other request has won. It isn't queued or retried, since it is only worth sending right away,
+   * so it is dropped when the limiter has no room for it.
+   */
+  private final class HedgedCheck implements ResultCallback<Boolean> {
+    private final PurchaseVerificationRequest request;
+    private final HedgingPolicy hedgingPolicy;
+    private final ResultCallback<Boolean> callback;
+    private int pending = 1;
+    private boolean completed;
+    private Exception lastError;
+    private boolean armed;
+    private ScheduledFuture<?> hedgeTimeout;
+
+    HedgedCheck(PurchaseVerificationRequest request, HedgingPolicy hedgingPolicy,
+        ResultCallback<Boolean> callback) {
+      this.request = request;
+      this.hedgingPolicy = hedgingPolicy;
+      this.callback = callback;
+    }
+
+    void start() {
+      callBackend(this::sendFirst, this);
+    }
+
+    /**
+     * Sends the check, arming the hedge the first time.
+     */
+    private void sendFirst(ResultCallback<Boolean> attemptCallback) {
+      synchronized (this) {
+        if (!armed && !completed) {
+          armed = true;
+          long hedgeDelay = hedgingPolicy.onCheckStarted();
+          if (hedgeDelay >= 0) {
+            try {
+              hedgeTimeout = scheduler.schedule(this::hedge, hedgeDelay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+              // The service was released, the check just won't be hedged
+            }
+          }
+        }
+      }
+      sendTimedCheck(attemptCallback);
+    }
+
+    /**
+     * Sends a request, recording how long the backend took to answer it. Only the answers count:
+     * time spent waiting for the limiter or for a retry, and requests that failed or weren't sent,
+     * don't say anything about how fast the backend is.
+     */
+    private void sendTimedCheck(final ResultCallback<Boolean> attemptCallback) {
+      final long sentMillis = SystemClock.elapsedRealtime();
+      sendCheck(request, new ResultCallback<Boolean>() {
+        @Override public void onResult(Boolean isValid) {
+          hedgingPolicy.recordLatency(SystemClock.elapsedRealtime() - sentMillis);
+          attemptCallback.onResult(isValid);
+        }
+
+        @Override public void onError(Exception error) {
+          attemptCallback.onError(error);
+        }
+      });
+    }
+
+    private void hedge() {
+      synchronized (this) {
+        if (completed || !hedgingPolicy.tryHedge()) {
+          return;
+        }
+        pending++;
+      }
+      RetryPolicy retryPolicy = PurchaseService.this.retryPolicy;
+      CircuitBreaker circuitBreaker = PurchaseService.this.circuitBreaker;
+      RequestLimiter requestLimiter = PurchaseService.this.requestLimiter;
+      // Sent as the last attempt allowed, so that it isn't retried
+      boolean sent = requestLimiter.trySubmit(
+          () -> callBackendNow(this::sendTimedCheck, this,
+              retryPolicy, circuitBreaker, retryPolicy.getMaxAttempts(), requestLimiter));
+      if (sent) {
+        Log.i(TAG, "Purchase check is slow, sending it again: " + request);
+        return;
+      }
+      Exception error;
+      synchronized (this) {
+        if (completed || --pending > 0) {
+          return;
+        }
+        complete();
+        error = lastError;
+      }
+      callback.onError(error);
+    }
+
+    @Override public void onResult(Boolean isValid) {
+      synchronized (this) {
+        if (completed) {
+          return;
+        }
+        complete();
+      }
+      callback.onResult(isValid);
+    }
+
+    @Override public void onError(Exception error) {
+      synchronized (this) {
+        lastError = error;
+        if (completed || --pending > 0) {
+          return;
+        }
+        complete();
+      }
+      callback.onError(error);
+    }
+
+    private void complete() {
+      completed = true;
+      if (hedgeTimeout != null) {
+        hedgeTimeout.cancel(false);
+      }
+    }
+  }
+
+  private interface ResultCallback<T> {
+    void onResult(T result);
+
+    void onError(Exception error);
+  }
+
+  private interface BackendCall<T> {
+    void call(ResultCallback<T> callback);
+  }
+
+  /**
+   * Turns a response into a result, failing with a {@link PurchaseVerificationException} when the
+   * backend doesn't answer with 200. The response is always closed.
+   */
+  private abstract static class ResponseHandler<T> implements AsyncHttpTransport.Callback {
+    private final ResultCallback<T> callback;
+
+    ResponseHandler(ResultCallback<T> callback) {
+      this.callback = callback;
+    }
+
+    abstract T parse(HttpResponse response) throws IOException;
+
+    @Override public void onResponse(HttpResponse response) {
+      T result;
+      try {
+        if (response.getCode() != 200) {
+          throw new PurchaseVerificationException(response.getCode(), response.getMessage());
+        }
+        result = parse(response);
+      } catch (Exception e) {
+        closeQuietly(response);
+        callback.onError(e);
+        return;
+      }
+      closeQuietly(response);
+      callback.onResult(result);
+    }
+
+    @Override public void onFailure(IOException error) {
+      callback.onError(error);
+    }
+
+    private static void closeQuietly(HttpResponse response) {
+      try {
+        response.close();
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to release the connection", e);
+      }
+    }
+  }
 }
@@ -0,0 +1,76 @@
+package com.aptoide.iabexample.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups purchase verification requests into batches. A batch is handed over as soon as it
+ * reaches the maximum size, or once the linger time has passed since its first request was added,
+ * whichever happens first.
+ */
+class PurchaseVerificationBatcher {
+  private final int maxBatchSize;
+  private final long lingerMillis;
+  private final ScheduledExecutorService scheduler;
+  private final BatchHandler handler;
+  private List<PurchaseVerificationRequest> pending;
+  private ScheduledFuture<?> lingerTimeout;
+
+  PurchaseVerificationBatcher(int maxBatchSize, long lingerMillis,
+      ScheduledExecutorService scheduler, BatchHandler handler) {
+    if (maxBatchSize <= 0) {
+      throw new IllegalArgumentException("maxBatchSize must be positive");
+    }
+    this.maxBatchSize = maxBatchSize;
+    this.lingerMillis = lingerMillis;
+    this.scheduler = scheduler;
+    this.handler = handler;
+    this.pending = new ArrayList<>(maxBatchSize);
+  }
+
+  void add(PurchaseVerificationRequest request) {
+    List<PurchaseVerificationRequest> batch = null;
+    synchronized (this) {
+      pending.add(request);
+      if (pending.size() >= maxBatchSize) {
+        batch = takePending();
+      } else if (lingerTimeout == null) {
+        lingerTimeout = scheduler.schedule(this::flush, lingerMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (batch != null) {
+      handler.onBatch(batch);
+    }
+  }
+
+  /**
+   * Hands over whatever is pending right away.
+   */
+  void flush() {
+    List<PurchaseVerificationRequest> batch;
+    synchronized (this) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = takePending();
+    }
+    handler.onBatch(batch);
+  }
+
+  private List<PurchaseVerificationRequest> takePending() {
+    List<PurchaseVerificationRequest> batch = pending;
+    pending = new ArrayList<>(maxBatchSize);
+    if (lingerTimeout != null) {
+      lingerTimeout.cancel(false);
+      lingerTimeout = null;
+    }
+    return batch;
+  }
+
+  interface BatchHandler {
+    void onBatch(List<PurchaseVerificationRequest> batch);
+  }
+}
@@ -0,0 +1,102 @@
+package com.aptoide.iabexample.util;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Body of a purchase verification request. The JSON is written as UTF-8 to the given stream as
+ * it is produced, optionally gzip compressed, without building it as a string first.
+ * {@link KeepAliveHttpTransport} writes it to a buffer, so the request can be sent with a fixed
+ * length rather than chunked, and then sends that buffer.
+ *
+ * A single purchase is written as {@code {"token":"...","product":"..."}} and a batch as
+ * {@code {"purchases":[{"token":"...","product":"..."},...]}}.
+ */
+final class PurchaseVerificationBody implements HttpTransport.RequestBody {
+  private static final String GZIP = "gzip";
+
+  private final List<PurchaseVerificationRequest> requests;
+  private final boolean batch;
+  private final boolean gzip;
+
+  private PurchaseVerificationBody(List<PurchaseVerificationRequest> requests, boolean batch,
+      boolean gzip) {
+    this.requests = requests;
+    this.batch = batch;
+    this.gzip = gzip;
+  }
+
+  static PurchaseVerificationBody single(PurchaseVerificationRequest request, boolean gzip) {
+    return new PurchaseVerificationBody(Collections.singletonList(request), false, gzip);
+  }
+
+  static PurchaseVerificationBody batch(List<PurchaseVerificationRequest> requests,
+      boolean gzip) {
+    return new PurchaseVerificationBody(requests, true, gzip);
+  }
+
+  @Override public String contentType() {
+    return "application/json;charset=UTF-8";
+  }
+
+  @Override public String contentEncoding() {
+    return gzip ? GZIP : null;
+  }
+
+  @Override public void writeTo(OutputStream out) throws IOException {
+    // Closing the writer finishes the gzip stream, but the connection stream is left open
+    OutputStream target = new UnclosableOutputStream(out);
+    if (gzip) {
+      target = new GZIPOutputStream(target);
+    }
+    JsonWriter writer =
+        new JsonWriter(new BufferedWriter(new OutputStreamWriter(target, "UTF-8")));
+    try {
+      if (batch) {
+        writer.beginObject()
+            .name("purchases")
+            .beginArray();
+        for (PurchaseVerificationRequest request : requests) {
+          writePurchase(writer, request);
+        }
+        writer.endArray()
+            .endObject();
+      } else {
+        writePurchase(writer, requests.get(0));
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static void writePurchase(JsonWriter writer, PurchaseVerificationRequest request)
+      throws IOException {
+    writer.beginObject()
+        .name("token")
+        .value(request.getToken())
+        .name("product")
+        .value(request.getSku())
+        .endObject();
+  }
+
+  private static final class UnclosableOutputStream extends FilterOutputStream {
+    UnclosableOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override public void write(byte[] buffer, int offset, int length) throws IOException {
+      out.write(buffer, offset, length);
+    }
+
+    @Override public void close() throws IOException {
+      out.flush();
+    }
+  }
+}
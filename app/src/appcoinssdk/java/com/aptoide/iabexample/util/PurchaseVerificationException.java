@@ -0,0 +1,17 @@
+package com.aptoide.iabexample.util;
+
+/**
+ * Thrown when the verification backend answers with an unexpected HTTP status.
+ */
+public class PurchaseVerificationException extends Exception {
+  private final int responseCode;
+
+  public PurchaseVerificationException(int responseCode, String responseMessage) {
+    super("Response code: " + responseCode + "\n" + "Message: " + responseMessage);
+    this.responseCode = responseCode;
+  }
+
+  public int getResponseCode() {
+    return responseCode;
+  }
+}
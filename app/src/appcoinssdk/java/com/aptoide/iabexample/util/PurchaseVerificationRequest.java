@@ -0,0 +1,42 @@
+package com.aptoide.iabexample.util;
+
+/**
+ * A purchase to be verified by {@link PurchaseService}, identified by its sku and token.
+ */
+public class PurchaseVerificationRequest {
+  private final String sku;
+  private final String token;
+
+  public PurchaseVerificationRequest(String sku, String token) {
+    this.sku = sku;
+    this.token = token;
+  }
+
+  public String getSku() {
+    return sku;
+  }
+
+  public String getToken() {
+    return token;
+  }
+
+  @Override public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    PurchaseVerificationRequest that = (PurchaseVerificationRequest) o;
+
+    if (sku != null ? !sku.equals(that.sku) : that.sku != null) return false;
+    return token != null ? token.equals(that.token) : that.token == null;
+  }
+
+  @Override public int hashCode() {
+    int result = sku != null ? sku.hashCode() : 0;
+    result = 31 * result + (token != null ? token.hashCode() : 0);
+    return result;
+  }
+
+  @Override public String toString() {
+    return "PurchaseVerificationRequest{" + "sku='" + sku + '\'' + ", token='" + token + '\'' + '}';
+  }
+}
@@ -0,0 +1,285 @@
+package com.aptoide.iabexample.util;
+
+import android.os.SystemClock;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the requests sent to the verification backend, both in rate and in how many are in
+ * flight at the same time.
+ *
+ * The rate is limited with a token bucket: tokens are added at a steady rate up to the burst size
+ * and every request takes one. A request that can't be sent right away, for lack of a token or
+ * because too many requests are in flight, waits in a queue and is sent in order as soon as
+ * possible. When the queue is full, requests are rejected with a
+ * {@link RequestRejectedException}.
+ */
+public class RequestLimiter {
+  public static final double DEFAULT_REQUESTS_PER_SECOND = 10;
+  public static final int DEFAULT_BURST = 10;
+  public static final int DEFAULT_MAX_IN_FLIGHT = 5;
+  public static final int DEFAULT_MAX_QUEUED = 100;
+
+  private final double tokensPerMilli;
+  private final int burst;
+  private final int maxInFlight;
+  private final int maxQueued;
+  private final ScheduledExecutorService scheduler;
+  private final Deque<QueuedTask> queue = new ArrayDeque<>();
+  private double tokens;
+  private long lastRefillMillis;
+  private int inFlight;
+  private boolean drainScheduled;
+
+  private long admitted;
+  private long rejected;
+  private long waited;
+  private long totalWaitMillis;
+  private long maxWaitMillis;
+  private int maxQueueDepth;
+
+  /**
+   * @param requestsPerSecond Sustained rate of requests.
+   * @param burst Number of requests that can be sent at once after a quiet period.
+   * @param maxInFlight Maximum number of requests waiting for an answer at the same time.
+   * @param maxQueued Maximum number of requests waiting to be sent.
+   * @param scheduler Used to send queued requests once tokens are available again.
+   */
+  RequestLimiter(double requestsPerSecond, int burst, int maxInFlight, int maxQueued,
+      ScheduledExecutorService scheduler) {
+    if (requestsPerSecond <= 0 || burst < 1 || maxInFlight < 1 || maxQueued < 0) {
+      throw new IllegalArgumentException("Invalid request limits");
+    }
+    this.tokensPerMilli = requestsPerSecond / 1000;
+    this.burst = burst;
+    this.maxInFlight = maxInFlight;
+    this.maxQueued = maxQueued;
+    this.scheduler = scheduler;
+    this.tokens = burst;
+    this.lastRefillMillis = SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * Runs the task as soon as the limits allow it. Once it runs, the task must call
+   * {@link #release()} when its request is done.
+   */
+  void submit(Task task) {
+    boolean runNow = false;
+    int queueDepth;
+    synchronized (this) {
+      long now = SystemClock.elapsedRealtime();
+      refill(now);
+      queueDepth = queue.size();
+      if (queue.isEmpty() && canStart()) {
+        start();
+        runNow = true;
+      } else if (queueDepth < maxQueued) {
+        queue.add(new QueuedTask(task, now));
+        maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+        scheduleDrain();
+        return;
+      } else {
+        rejected++;
+      }
+    }
+    if (runNow) {
+      task.run();
+    } else {
+      task.reject(new RequestRejectedException(queueDepth));
+    }
+  }
+
+  /**
+   * Runs the task right away if the limits allow it, and doesn't run it at all otherwise, for
+   * requests that are only worth sending now. Once it runs, the task must call {@link #release()}
+   * when its request is done.
+   *
+   * @return true if the task was run.
+   */
+  boolean trySubmit(Runnable task) {
+    synchronized (this) {
+      refill(SystemClock.elapsedRealtime());
+      if (!queue.isEmpty() || !canStart()) {
+        return false;
+      }
+      start();
+    }
+    task.run();
+    return true;
+  }
+
+  /**
+   * Called when a request is done, letting a queued one be sent.
+   */
+  void release() {
+    synchronized (this) {
+      inFlight--;
+    }
+    drain();
+  }
+
+  public synchronized Metrics getMetrics() {
+    return new Metrics(queue.size(), maxQueueDepth, inFlight, admitted, rejected,
+        waited == 0 ? 0 : totalWaitMillis / waited, maxWaitMillis);
+  }
+
+  private void drain() {
+    while (true) {
+      QueuedTask next;
+      synchronized (this) {
+        long now = SystemClock.elapsedRealtime();
+        refill(now);
+        if (queue.isEmpty()) {
+          return;
+        }
+        if (!canStart()) {
+          scheduleDrain();
+          return;
+        }
+        next = queue.poll();
+        start();
+        long waitMillis = now - next.queuedMillis;
+        waited++;
+        totalWaitMillis += waitMillis;
+        maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+      }
+      next.task.run();
+    }
+  }
+
+  private void onDrainTimeout() {
+    synchronized (this) {
+      drainScheduled = false;
+    }
+    drain();
+  }
+
+  private void refill(long now) {
+    tokens = Math.min(burst, tokens + (now - lastRefillMillis) * tokensPerMilli);
+    lastRefillMillis = now;
+  }
+
+  private boolean canStart() {
+    return inFlight < maxInFlight && tokens >= 1;
+  }
+
+  private void start() {
+    inFlight++;
+    tokens--;
+    admitted++;
+  }
+
+  /**
+   * Schedules a drain for when the next token is available. When it's the in flight limit that
+   * holds the queue back, the next {@link #release()} drains it instead.
+   */
+  private void scheduleDrain() {
+    if (drainScheduled || inFlight >= maxInFlight || tokens >= 1) {
+      return;
+    }
+    long delay = (long) Math.ceil((1 - tokens) / tokensPerMilli);
+    try {
+      scheduler.schedule(this::onDrainTimeout, delay, TimeUnit.MILLISECONDS);
+      drainScheduled = true;
+    } catch (RejectedExecutionException e) {
+      // The service was released
+    }
+  }
+
+  interface Task {
+    void run();
+
+    void reject(RequestRejectedException error);
+  }
+
+  private static final class QueuedTask {
+    final Task task;
+    final long queuedMillis;
+
+    QueuedTask(Task task, long queuedMillis) {
+      this.task = task;
+      this.queuedMillis = queuedMillis;
+    }
+  }
+
+  /**
+   * Snapshot of the state of the limiter and of what it has done so far.
+   */
+  public static final class Metrics {
+    private final int queueDepth;
+    private final int maxQueueDepth;
+    private final int inFlight;
+    private final long admitted;
+    private final long rejected;
+    private final long averageWaitMillis;
+    private final long maxWaitMillis;
+
+    Metrics(int queueDepth, int maxQueueDepth, int inFlight, long admitted, long rejected,
+        long averageWaitMillis, long maxWaitMillis) {
+      this.queueDepth = queueDepth;
+      this.maxQueueDepth = maxQueueDepth;
+      this.inFlight = inFlight;
+      this.admitted = admitted;
+      this.rejected = rejected;
+      this.averageWaitMillis = averageWaitMillis;
+      this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /** Requests waiting to be sent. */
+    public int getQueueDepth() {
+      return queueDepth;
+    }
+
+    /** Most requests that have been waiting at the same time. */
+    public int getMaxQueueDepth() {
+      return maxQueueDepth;
+    }
+
+    /** Requests waiting for an answer. */
+    public int getInFlight() {
+      return inFlight;
+    }
+
+    /** Requests sent so far. */
+    public long getAdmitted() {
+      return admitted;
+    }
+
+    /** Requests rejected so far because the queue was full. */
+    public long getRejected() {
+      return rejected;
+    }
+
+    /** Average time spent in the queue by the requests that had to wait. */
+    public long getAverageWaitMillis() {
+      return averageWaitMillis;
+    }
+
+    /** Longest time a request spent in the queue. */
+    public long getMaxWaitMillis() {
+      return maxWaitMillis;
+    }
+
+    @Override public String toString() {
+      return "Metrics{"
+          + "queueDepth="
+          + queueDepth
+          + ", maxQueueDepth="
+          + maxQueueDepth
+          + ", inFlight="
+          + inFlight
+          + ", admitted="
+          + admitted
+          + ", rejected="
+          + rejected
+          + ", averageWaitMillis="
+          + averageWaitMillis
+          + ", maxWaitMillis="
+          + maxWaitMillis
+          + '}';
+    }
+  }
+}
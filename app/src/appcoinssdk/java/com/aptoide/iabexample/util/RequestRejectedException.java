@@ -0,0 +1,18 @@
+package com.aptoide.iabexample.util;
+
+/**
+ * Reported when a verification was not attempted because too many requests to the backend were
+ * already waiting to be sent, see {@link RequestLimiter}.
+ */
+public class RequestRejectedException extends Exception {
+  private final int queueDepth;
+
+  public RequestRejectedException(int queueDepth) {
+    super("Too many verification requests. " + queueDepth + " already waiting");
+    this.queueDepth = queueDepth;
+  }
+
+  public int getQueueDepth() {
+    return queueDepth;
+  }
+}
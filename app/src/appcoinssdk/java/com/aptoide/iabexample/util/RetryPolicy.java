@@ -0,0 +1,71 @@
+package com.aptoide.iabexample.util;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether a failed call to the verification backend is retried, and how long to wait
+ * before doing it.
+ *
+ * Delays grow exponentially from the base delay up to the maximum delay, and the actual delay is
+ * picked at random between zero and that value ("full jitter") so clients that failed at the same
+ * time don't retry at the same time.
+ */
+public class RetryPolicy {
+  public static final int DEFAULT_MAX_ATTEMPTS = 3;
+  public static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+  public static final long DEFAULT_MAX_DELAY_MILLIS = 5000;
+
+  private final int maxAttempts;
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+
+  /**
+   * @param maxAttempts Total number of attempts, including the first one. 1 disables retries.
+   * @param baseDelayMillis Upper bound of the delay before the first retry.
+   * @param maxDelayMillis Upper bound of the delay before any retry.
+   */
+  public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("maxAttempts must be at least 1");
+    }
+    this.maxAttempts = maxAttempts;
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+  }
+
+  public static RetryPolicy createDefault() {
+    return new RetryPolicy(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS,
+        DEFAULT_MAX_DELAY_MILLIS);
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * @param retry The number of the retry about to be done, starting at 1.
+   *
+   * @return How long to wait before doing it.
+   */
+  public long getDelayMillis(int retry) {
+    long ceiling = baseDelayMillis << Math.min(retry - 1, 20);
+    if (ceiling <= 0 || ceiling > maxDelayMillis) {
+      ceiling = maxDelayMillis;
+    }
+    return ThreadLocalRandom.current()
+        .nextLong(ceiling + 1);
+  }
+
+  /**
+   * Purchase checks are idempotent, so anything that may be caused by a transient problem can be
+   * retried: network errors, timeouts, throttling and server errors.
+   */
+  public boolean isRetryable(Exception error) {
+    if (error instanceof PurchaseVerificationException) {
+      int responseCode = ((PurchaseVerificationException) error).getResponseCode();
+      return responseCode == 408 || responseCode == 429 || responseCode >= 500;
+    }
+    return error instanceof IOException;
+  }
+}
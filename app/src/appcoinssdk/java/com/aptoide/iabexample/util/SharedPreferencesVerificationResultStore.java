@@ -0,0 +1,162 @@
+package com.aptoide.iabexample.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link VerificationResultStore} backed by a private {@link SharedPreferences} file, so results
+ * survive process death.
+ *
+ * Valid and invalid results expire separately. A valid purchase doesn't become invalid later, so
+ * by default valid results never expire, while invalid ones are kept only for a short time in case
+ * they were caused by a backend that wasn't up to date yet.
+ *
+ * Purchases that are consumed never come back, so their results are never asked for again. To
+ * keep the file, which is loaded whole into memory, from growing with every purchase, only the
+ * most recent results are kept: once there are more than the maximum, the oldest ones are removed
+ * along with the expired ones, see {@link #removeExpired()}.
+ */
+public class SharedPreferencesVerificationResultStore implements VerificationResultStore {
+  public static final long NEVER_EXPIRES = Long.MAX_VALUE;
+  public static final long DEFAULT_VALID_TTL_MILLIS = NEVER_EXPIRES;
+  public static final long DEFAULT_INVALID_TTL_MILLIS = 5 * 60 * 1000;
+  public static final int DEFAULT_MAX_ENTRIES = 500;
+  private static final String PREFERENCES_NAME = "purchase_verification_results";
+  private static final String VALID = "1";
+  private static final String INVALID = "0";
+  private static final char SEPARATOR = ':';
+
+  private final SharedPreferences preferences;
+  private final long validTtlMillis;
+  private final long invalidTtlMillis;
+  private final int maxEntries;
+  // Results stored since the last clean up
+  private final AtomicInteger puts = new AtomicInteger();
+
+  public SharedPreferencesVerificationResultStore(Context context) {
+    this(context, DEFAULT_VALID_TTL_MILLIS, DEFAULT_INVALID_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * @param validTtlMillis How long a valid result is kept, or {@link #NEVER_EXPIRES}.
+   * @param invalidTtlMillis How long an invalid result is kept, or {@link #NEVER_EXPIRES}.
+   */
+  public SharedPreferencesVerificationResultStore(Context context, long validTtlMillis,
+      long invalidTtlMillis) {
+    this(context, validTtlMillis, invalidTtlMillis, DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * @param validTtlMillis How long a valid result is kept, or {@link #NEVER_EXPIRES}.
+   * @param invalidTtlMillis How long an invalid result is kept, or {@link #NEVER_EXPIRES}.
+   * @param maxEntries Number of results kept, the most recent ones.
+   */
+  public SharedPreferencesVerificationResultStore(Context context, long validTtlMillis,
+      long invalidTtlMillis, int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be at least 1");
+    }
+    this.preferences = context.getApplicationContext()
+        .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    this.validTtlMillis = validTtlMillis;
+    this.invalidTtlMillis = invalidTtlMillis;
+    this.maxEntries = maxEntries;
+  }
+
+  @Override public Boolean get(String sku, String token) {
+    String value = preferences.getString(key(sku, token), null);
+    if (value == null) {
+      return null;
+    }
+    Entry entry = Entry.parse(value);
+    if (entry == null || isExpired(entry, System.currentTimeMillis())) {
+      return null;
+    }
+    return entry.isValid;
+  }
+
+  @Override public void put(String sku, String token, boolean isValid) {
+    preferences.edit()
+        .putString(key(sku, token),
+            (isValid ? VALID : INVALID) + SEPARATOR + System.currentTimeMillis())
+        .apply();
+    // Cleaning up goes through every result, so it is done once in a while
+    if (puts.incrementAndGet() >= Math.max(1, maxEntries / 10)) {
+      removeExpired();
+    }
+  }
+
+  /**
+   * Removes every expired result, and the oldest results over the maximum.
+   */
+  @Override public void removeExpired() {
+    puts.set(0);
+    long now = System.currentTimeMillis();
+    List<String> removed = new ArrayList<>();
+    List<Map.Entry<String, Entry>> kept = new ArrayList<>();
+    for (Map.Entry<String, ?> stored : preferences.getAll()
+        .entrySet()) {
+      Object value = stored.getValue();
+      Entry entry = value instanceof String ? Entry.parse((String) value) : null;
+      if (entry == null || isExpired(entry, now)) {
+        removed.add(stored.getKey());
+      } else {
+        kept.add(new AbstractMap.SimpleImmutableEntry<>(stored.getKey(), entry));
+      }
+    }
+    if (kept.size() > maxEntries) {
+      Collections.sort(kept,
+          (entry, other) -> Long.compare(entry.getValue().verifiedAt, other.getValue().verifiedAt));
+      for (Map.Entry<String, Entry> oldest : kept.subList(0, kept.size() - maxEntries)) {
+        removed.add(oldest.getKey());
+      }
+    }
+    if (removed.isEmpty()) {
+      return;
+    }
+    SharedPreferences.Editor editor = preferences.edit();
+    for (String key : removed) {
+      editor.remove(key);
+    }
+    editor.apply();
+  }
+
+  private boolean isExpired(Entry entry, long now) {
+    long ttl = entry.isValid ? validTtlMillis : invalidTtlMillis;
+    return ttl != NEVER_EXPIRES && now - entry.verifiedAt >= ttl;
+  }
+
+  private static String key(String sku, String token) {
+    // The sku can't contain new lines, so the key is unambiguous
+    return sku + '\n' + token;
+  }
+
+  private static final class Entry {
+    final boolean isValid;
+    final long verifiedAt;
+
+    Entry(boolean isValid, long verifiedAt) {
+      this.isValid = isValid;
+      this.verifiedAt = verifiedAt;
+    }
+
+    static Entry parse(String value) {
+      int separator = value.indexOf(SEPARATOR);
+      if (separator < 0) {
+        return null;
+      }
+      try {
+        return new Entry(VALID.equals(value.substring(0, separator)),
+            Long.parseLong(value.substring(separator + 1)));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,20 @@
+package com.aptoide.iabexample.util;
+
+/**
+ * Stores purchase verification results so {@link PurchaseService} doesn't ask the backend about
+ * the same purchase twice.
+ */
+public interface VerificationResultStore {
+
+  /**
+   * @return The stored result for the purchase, or null if there is none or it has expired.
+   */
+  Boolean get(String sku, String token);
+
+  void put(String sku, String token, boolean isValid);
+
+  /**
+   * Removes every expired result.
+   */
+  void removeExpired();
+}
@@ -14,6 +14,7 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
+import com.aptoide.iabexample.util.BillingWarmStart;
 import com.aptoide.iabexample.util.GenericPaymentIntentBuilder;
 import com.aptoide.iabexample.util.IabBroadcastReceiver;
 import com.aptoide.iabexample.util.IabHelper;
@@ -336,7 +337,16 @@ public class MainActivity extends Activity
       //  IntentFilter broadcastFilter = new IntentFilter(IabBroadcastReceiver.ACTION);
       //  registerReceiver(mBroadcastReceiver, broadcastFilter);
       //}
-      // IAB is fully set up. Now, let's get an inventory of stuff we own.
+      // IAB is fully set up. Now, let's get an inventory of stuff we own, unless it was
+      // prefetched when the app started.
+      Inventory prefetched = BillingWarmStart.takeInventory();
+      if (prefetched != null) {
+        Log.d(TAG, "Setup successful. Using prefetched inventory.");
+        mGotInventoryListener.onQueryInventoryFinished(
+            new IabResult(IabHelper.BILLING_RESPONSE_RESULT_OK, "Inventory prefetched."),
+            prefetched);
+        return;
+      }
       Log.d(TAG, "Setup successful. Querying inventory.");
       try {
         mHelper.queryInventoryAsync(mGotInventoryListener);
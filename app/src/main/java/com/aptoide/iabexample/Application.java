@@ -1,6 +1,10 @@
 package com.aptoide.iabexample;
 
+import com.aptoide.iabexample.util.BillingWarmStart;
+import com.aptoide.iabexample.util.Skus;
 import com.asf.appcoins.sdk.ads.AppCoinsAds;
+import java.util.Arrays;
+import java.util.Collections;
 
 /**
  * Created by neuro on 12-03-2018.
@@ -12,6 +16,12 @@ public class Application extends android.app.Application {
 
   @Override public void onCreate() {
     super.onCreate();
+    if (BuildConfig.IAB_WARM_START) {
+      // Gets billing ready while the first Activity is being created
+      BillingWarmStart.start(this, BuildConfig.IAB_KEY,
+          Arrays.asList(Skus.SKU_PREMIUM_ID, Skus.SKU_GAS_ID),
+          Collections.singletonList(Skus.SKU_GAS_WEEKLY_ID));
+    }
     //Comment this if sdk version = 0.6
     /*adsSdk = new AppCoinsAdsBuilder().withDebug(BuildConfig.TEST_NETWORK)
         .createAdvertisementSdk(this);
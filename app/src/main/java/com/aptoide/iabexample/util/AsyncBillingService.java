@@ -0,0 +1,47 @@
+package com.aptoide.iabexample.util;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+import java.util.List;
+
+/**
+ * Asynchronous variant of {@link BillingService}: every call returns right away and its outcome
+ * is given to a {@link Callback}, so the caller doesn't block a thread for the whole transaction
+ * and can have many calls outstanding at once.
+ *
+ * The methods and their arguments and answers are those of {@link BillingService}. See
+ * {@link BillingServiceAsyncAdapter} to use one of the synchronous services through this
+ * interface, and {@link FakeBillingService} for a service that runs in the app's process.
+ * {@link IabHelper} consumes purchases through this interface, using the service directly if it
+ * implements it.
+ */
+public interface AsyncBillingService {
+
+  void isBillingSupported(int apiVersion, String packageName, String type,
+      Callback<Integer> callback);
+
+  void getSkuDetails(int apiVersion, String packageName, String type, Bundle skusBundle,
+      Callback<Bundle> callback);
+
+  void getBuyIntent(int apiVersion, String packageName, String sku, String type,
+      String developerPayload, Callback<Bundle> callback);
+
+  void getPurchases(int apiVersion, String packageName, String type, String continuationToken,
+      Callback<Bundle> callback);
+
+  void consumePurchase(int apiVersion, String packageName, String purchaseToken,
+      Callback<Integer> callback);
+
+  void getBuyIntentToReplaceSkus(int apiVersion, String packageName, List<String> oldSkus,
+      String newSku, String type, String developerPayload, Callback<Bundle> callback);
+
+  /**
+   * Gets the outcome of a call. Exactly one of its methods is called, once, on a thread chosen by
+   * the service.
+   */
+  interface Callback<T> {
+    void onResult(T result);
+
+    void onError(RemoteException error);
+  }
+}
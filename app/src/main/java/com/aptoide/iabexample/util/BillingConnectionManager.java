@@ -0,0 +1,732 @@
+package com.aptoide.iabexample.util;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.aptoide.iabexample.util.IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE;
+import static com.aptoide.iabexample.util.IabHelper.BILLING_RESPONSE_RESULT_OK;
+import static com.aptoide.iabexample.util.IabHelper.IABHELPER_REMOTE_EXCEPTION;
+import static com.aptoide.iabexample.util.IabHelper.ITEM_TYPE_INAPP;
+import static com.aptoide.iabexample.util.IabHelper.ITEM_TYPE_SUBS;
+
+/**
+ * Process-wide connection to the billing service, shared by all the {@link IabHelper} instances.
+ *
+ * The first client to attach binds the billing providers and checks which billing features they
+ * support. Clients that attach later share those bindings and get the outcome of the checks as
+ * soon as it is known, without binding or checking again. The providers are unbound when the last
+ * client detaches.
+ *
+ * Every installed provider of the {@link BillingProviderRegistry} is bound, along with the other
+ * installed apps that expose a compatible billing service if discovery is enabled, and clients get
+ * a single {@link RoutingBillingService} that sends each call to the right registered provider.
+ * The service can be used as soon as one registered provider is checked, and stays usable as long
+ * as one is connected.
+ *
+ * When a provider process goes away, the system normally restarts it and connects it again. If
+ * that hasn't happened after a while, or if the binding died altogether, the provider is bound
+ * again, waiting longer after every failed attempt. The death of a provider process is watched on
+ * its binder, so it is noticed as soon as possible, before the system disconnects it.
+ *
+ * Whether a provider is installed is resolved once and kept, see {@link BillingServiceResolver},
+ * and providers are resolved and bound from a background thread.
+ *
+ * Clients are notified on the main thread, except of the death of the service.
+ */
+public class BillingConnectionManager {
+  private static final long MIN_RECONNECT_DELAY_MILLIS = 1000;
+  private static final long MAX_RECONNECT_DELAY_MILLIS = 60000;
+  private static final String PREFERENCES_NAME = "billing_connection";
+  private static BillingConnectionManager instance;
+
+  // Runs the billing support checks, which are blocking calls to the billing service
+  private final ExecutorService setupExecutor = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "BillingConnection-setup");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final IabLogger logger = new IabLogger("BillingConnection");
+  private final Context context;
+  private final Map<BillingProvider, BillingServiceResolver> resolvers = new HashMap<>();
+  // Pack sizers by the wallet versions they are tuned for
+  private final Map<String, SkuDetailsPackSizer> packSizers = new HashMap<>();
+  private final Set<Client> clients = new LinkedHashSet<>();
+  private final RoutingBillingService router = new RoutingBillingService();
+  private final BillingServiceMetrics metrics = new BillingServiceMetrics();
+  // What the clients call, the router with its calls measured
+  private final BillingService clientService = new InstrumentedBillingService(router, metrics);
+  // The providers bound while there are clients
+  private final List<ProviderConnection> connections = new ArrayList<>();
+  // Whether the providers are being found or bound, while there are clients
+  private boolean bound;
+  // Changes every time the providers are released, so that outdated findings are dropped
+  private int bindGeneration;
+  // Non null once the service can be used, or is known not to be
+  private SetupResult setupResult;
+
+  private BillingConnectionManager(Context context) {
+    this.context = context.getApplicationContext();
+  }
+
+  public static synchronized BillingConnectionManager getInstance(Context context) {
+    if (instance == null) {
+      instance = new BillingConnectionManager(context);
+    }
+    return instance;
+  }
+
+  /**
+   * Enables or disables the debug logs of the shared connection. Debug logging is never enabled in
+   * release builds.
+   */
+  public void enableDebugLogging(boolean enable) {
+    logger.setLevel(enable ? IabLogger.DEBUG : IabLogger.WARN);
+  }
+
+  /**
+   * @return The latencies, errors and response codes of the calls the app made to the billing
+   * service so far.
+   */
+  public BillingServiceMetrics getServiceMetrics() {
+    return metrics;
+  }
+
+  /**
+   * @return The providers found by discovery that are connected and support billing, but that
+   * aren't registered, so aren't called. See {@link BillingProviderRegistry#setDiscoveryEnabled}.
+   */
+  public synchronized List<BillingProvider> getDiscoveredProviders() {
+    List<BillingProvider> discovered = new ArrayList<>();
+    for (ProviderConnection connection : connections) {
+      if (connection.status == ProviderStatus.READY
+          && !BillingProviderRegistry.isRegistered(connection.provider)) {
+        discovered.add(connection.provider);
+      }
+    }
+    return discovered;
+  }
+
+  /**
+   * @return How to split getSkuDetails calls for the providers that are connected, which are
+   * usually a single wallet.
+   */
+  synchronized SkuDetailsPackSizer getSkuDetailsPackSizer() {
+    StringBuilder walletVersion = new StringBuilder();
+    for (ProviderConnection connection : connections) {
+      if (connection.status == ProviderStatus.READY
+          && BillingProviderRegistry.isRegistered(connection.provider)) {
+        if (walletVersion.length() > 0) {
+          walletVersion.append(',');
+        }
+        walletVersion.append(connection.walletVersion);
+      }
+    }
+    String key = walletVersion.toString();
+    SkuDetailsPackSizer packSizer = packSizers.get(key);
+    if (packSizer == null) {
+      packSizer = new SkuDetailsPackSizer(
+          context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE), key);
+      packSizers.put(key, packSizer);
+    }
+    return packSizer;
+  }
+
+  /**
+   * Adds a client to the connection, binding the providers if it's the first one. The client is
+   * notified through {@link Client#onSetupFinished} once the service can be used, right away if
+   * that is already the case, and again every time it can be used after having gone away.
+   */
+  void attach(final Client client) {
+    final SetupResult currentResult;
+    synchronized (this) {
+      if (!clients.add(client)) {
+        return;
+      }
+      logger.debug("Client attached. Clients: ", clients.size());
+      if (!bound) {
+        bindProviders();
+        return;
+      }
+      currentResult = setupResult;
+    }
+    if (currentResult != null) {
+      mainHandler.post(() -> {
+        synchronized (BillingConnectionManager.this) {
+          if (!clients.contains(client) || setupResult != currentResult) {
+            return;
+          }
+        }
+        client.onSetupFinished(clientService, currentResult);
+      });
+    }
+  }
+
+  /**
+   * Removes a client from the connection, unbinding the providers if it was the last one. The
+   * client isn't notified of anything after this.
+   */
+  void detach(Client client) {
+    synchronized (this) {
+      if (!clients.remove(client)) {
+        return;
+      }
+      logger.debug("Client detached. Clients: ", clients.size());
+      if (clients.isEmpty()) {
+        releaseProviders();
+      }
+    }
+  }
+
+  /**
+   * Finds the providers in the background, then binds them.
+   */
+  private void bindProviders() {
+    bound = true;
+    final int generation = bindGeneration;
+    final List<BillingProvider> registered = BillingProviderRegistry.getProviders();
+    setupExecutor.execute(() -> {
+      List<BillingProvider> providers = new ArrayList<>(registered);
+      if (BillingProviderRegistry.isDiscoveryEnabled()) {
+        Set<String> bindActions = new LinkedHashSet<>();
+        for (BillingProvider provider : registered) {
+          bindActions.add(provider.getBindAction());
+        }
+        for (String bindAction : bindActions) {
+          for (BillingProvider provider : BillingServiceResolver.findProviders(context,
+              bindAction)) {
+            if (!providers.contains(provider)) {
+              providers.add(provider);
+            }
+          }
+        }
+      }
+      Runnable notification = null;
+      synchronized (BillingConnectionManager.this) {
+        if (!bound || bindGeneration != generation) {
+          // Released while the providers were being found
+          return;
+        }
+        logger.debug("Billing providers: ", providers);
+        for (BillingProvider provider : providers) {
+          BillingServiceResolver resolver = resolvers.get(provider);
+          if (resolver == null) {
+            resolver = new BillingServiceResolver(context, provider);
+            resolvers.put(provider, resolver);
+          }
+          ProviderConnection connection = new ProviderConnection(provider, resolver);
+          connections.add(connection);
+          connection.startBinding();
+        }
+        if (connections.isEmpty()) {
+          notification = updateState(false);
+        }
+      }
+      if (notification != null) {
+        mainHandler.post(notification);
+      }
+    });
+  }
+
+  private void releaseProviders() {
+    logger.debug("Unbinding from billing providers.");
+    if (logger.isDebugEnabled()) {
+      for (BillingServiceMetrics.Method method : BillingServiceMetrics.Method.values()) {
+        BillingServiceMetrics.MethodStats stats = metrics.getStats(method);
+        if (stats.getCalls() > 0) {
+          logger.debug(stats.toString());
+        }
+      }
+    }
+    for (ProviderConnection connection : connections) {
+      connection.release();
+    }
+    connections.clear();
+    bound = false;
+    bindGeneration++;
+    router.clear();
+    setupResult = null;
+  }
+
+  /**
+   * Works out whether the service became usable, or stopped being usable, after a provider
+   * changed state. Called while holding the lock.
+   *
+   * @param died Whether a provider changed state because its process died.
+   *
+   * @return What the clients must be told, to be run without holding the lock.
+   */
+  private Runnable updateState(final boolean died) {
+    boolean ready = !router.isEmpty();
+    boolean wasReady = setupResult != null && setupResult.result.isSuccess();
+    final List<Client> notified = new ArrayList<>(clients);
+    if (ready && !wasReady) {
+      final SetupResult result =
+          new SetupResult(new IabResult(BILLING_RESPONSE_RESULT_OK, "Setup successful."),
+              router.isSubscriptionsSupported(), router.isSubscriptionUpdateSupported());
+      setupResult = result;
+      return () -> {
+        for (Client client : notified) {
+          client.onSetupFinished(clientService, result);
+        }
+      };
+    }
+    if (!ready && wasReady) {
+      setupResult = null;
+      return () -> {
+        for (Client client : notified) {
+          if (died) {
+            client.onServiceDied();
+          } else {
+            client.onServiceDisconnected();
+          }
+        }
+      };
+    }
+    if (ready || setupResult != null) {
+      return null;
+    }
+    SetupResult failure = null;
+    for (ProviderConnection connection : connections) {
+      if (connection.status == ProviderStatus.PENDING) {
+        // Not settled yet
+        return null;
+      }
+      if (connection.status == ProviderStatus.FAILED && failure == null) {
+        failure = connection.failure;
+      }
+    }
+    if (failure != null) {
+      // The providers are there but don't support billing. They stay bound, as before.
+      final SetupResult result = failure;
+      setupResult = result;
+      return () -> {
+        for (Client client : notified) {
+          client.onSetupFinished(clientService, result);
+        }
+      };
+    }
+    logger.warn("Billing service unavailable on device.");
+    clients.clear();
+    releaseProviders();
+    final SetupResult unavailable = new SetupResult(
+        new IabResult(BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE,
+            "Billing service unavailable on device."), false, false);
+    return () -> {
+      for (Client client : notified) {
+        client.onSetupFinished(null, unavailable);
+      }
+    };
+  }
+
+  private static void run(Runnable notification) {
+    if (notification != null) {
+      notification.run();
+    }
+  }
+
+  private enum ProviderStatus {
+    /** Being bound, connected or checked. */
+    PENDING,
+    /** Connected and checked, calls are routed to it. */
+    READY,
+    /** Connected, but doesn't support billing. */
+    FAILED,
+    /** Not installed, or could not be bound. */
+    UNAVAILABLE
+  }
+
+  /**
+   * The binding to one billing provider. Its state is guarded by the manager's lock.
+   */
+  private final class ProviderConnection {
+    final BillingProvider provider;
+    final BillingServiceResolver resolver;
+    final Runnable reconnect = this::reconnect;
+    ProviderStatus status = ProviderStatus.PENDING;
+    // The outcome of the checks, if they failed
+    SetupResult failure;
+    // The package and version of the provider, once connected
+    String walletVersion;
+    // Non null while the provider is bound
+    ServiceConnection connection;
+    // Non null while the provider is connected
+    BillingService service;
+    IBinder binder;
+    IBinder.DeathRecipient deathRecipient;
+    long reconnectDelayMillis = MIN_RECONNECT_DELAY_MILLIS;
+    // Is the provider being resolved and bound in the background?
+    boolean binding;
+    // Is the provider being bound again after it went away?
+    boolean reconnecting;
+    boolean released;
+
+    ProviderConnection(BillingProvider provider, BillingServiceResolver resolver) {
+      this.provider = provider;
+      this.resolver = resolver;
+    }
+
+    void startBinding() {
+      if (!binding) {
+        binding = true;
+        setupExecutor.execute(this::bindInBackground);
+      }
+    }
+
+    /**
+     * Resolves and binds the provider. When it isn't available, it is left out, unless it is
+     * reconnecting, in which case it is tried again later.
+     */
+    private void bindInBackground() {
+      boolean available = resolver.isServiceAvailable();
+      Runnable notification;
+      synchronized (BillingConnectionManager.this) {
+        binding = false;
+        if (released || connection != null) {
+          return;
+        }
+        if ((available && bind()) || reconnecting) {
+          return;
+        }
+        logger.debug("Billing provider unavailable: ", provider);
+        status = ProviderStatus.UNAVAILABLE;
+        notification = updateState(false);
+      }
+      if (notification != null) {
+        mainHandler.post(notification);
+      }
+    }
+
+    /**
+     * @return false if the provider could not be bound.
+     */
+    private boolean bind() {
+      Intent serviceIntent = provider.newServiceIntent();
+      ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override public void onServiceConnected(ComponentName name, IBinder binder) {
+          onConnected(this, binder);
+        }
+
+        @Override public void onServiceDisconnected(ComponentName name) {
+          onDisconnected(this);
+        }
+
+        @Override public void onBindingDied(ComponentName name) {
+          // The binding won't connect again by itself, so bind again without waiting
+          onDisconnected(this);
+          synchronized (BillingConnectionManager.this) {
+            if (connection == this) {
+              mainHandler.removeCallbacks(reconnect);
+              mainHandler.post(reconnect);
+            }
+          }
+        }
+      };
+      logger.debug("Binding to billing provider: ", provider);
+      if (!context.bindService(serviceIntent, serviceConnection, Context.BIND_AUTO_CREATE)) {
+        context.unbindService(serviceConnection);
+        resolver.invalidate();
+        logger.warn("Could not bind to billing provider " + provider);
+        return false;
+      }
+      connection = serviceConnection;
+      status = ProviderStatus.PENDING;
+      return true;
+    }
+
+    private void onConnected(ServiceConnection serviceConnection, IBinder connectedBinder) {
+      final BillingService connectedService = provider.create(connectedBinder);
+      IBinder.DeathRecipient recipient = () -> onDied(connectedService);
+      try {
+        connectedBinder.linkToDeath(recipient, 0);
+      } catch (RemoteException e) {
+        // Already dead, the system disconnects it
+        logger.warn("Billing provider " + provider + " died while connecting.");
+        return;
+      }
+      synchronized (BillingConnectionManager.this) {
+        if (released || connection != serviceConnection) {
+          connectedBinder.unlinkToDeath(recipient, 0);
+          return;
+        }
+        logger.debug("Billing provider connected: ", provider);
+        clearService();
+        service = connectedService;
+        binder = connectedBinder;
+        deathRecipient = recipient;
+        status = ProviderStatus.PENDING;
+        mainHandler.removeCallbacks(reconnect);
+        reconnectDelayMillis = MIN_RECONNECT_DELAY_MILLIS;
+        reconnecting = false;
+      }
+      final String packageName = context.getPackageName();
+      setupExecutor.execute(() -> {
+        long start = SystemClock.elapsedRealtime();
+        final SetupResult result = checkBillingSupport(connectedService, packageName);
+        final long latencyMillis = SystemClock.elapsedRealtime() - start;
+        final String version = getWalletVersion();
+        mainHandler.post(() -> onChecked(connectedService, result, latencyMillis, version));
+      });
+    }
+
+    private void onChecked(BillingService checkedService, SetupResult result,
+        final long latencyMillis, String version) {
+      Runnable notification;
+      synchronized (BillingConnectionManager.this) {
+        if (service != checkedService) {
+          // Disconnected or unbound while it was being checked
+          return;
+        }
+        if (result.result.isSuccess()) {
+          if (logger.isDebugEnabled()) {
+            logger.debug("Billing provider ready: " + provider + ", checked in " + latencyMillis
+                + " ms.");
+          }
+          status = ProviderStatus.READY;
+          walletVersion = version;
+          router.addRoute(provider, checkedService, result, latencyMillis);
+        } else {
+          if (logger.isDebugEnabled()) {
+            logger.debug("Billing provider " + provider + " not supported: " + result.result);
+          }
+          status = ProviderStatus.FAILED;
+          failure = result;
+        }
+        notification = updateState(false);
+      }
+      run(notification);
+    }
+
+    private String getWalletVersion() {
+      try {
+        return provider.getBindPackage() + ':' + context.getPackageManager()
+            .getPackageInfo(provider.getBindPackage(), 0).versionCode;
+      } catch (PackageManager.NameNotFoundException e) {
+        return provider.getBindPackage();
+      }
+    }
+
+    private void onDisconnected(ServiceConnection serviceConnection) {
+      Runnable notification;
+      synchronized (BillingConnectionManager.this) {
+        if (connection != serviceConnection || service == null) {
+          return;
+        }
+        logger.debug("Billing provider disconnected: ", provider);
+        notification = onLost();
+      }
+      run(notification);
+    }
+
+    /**
+     * Called on a binder thread when the provider process dies, which is usually well before the
+     * system disconnects it.
+     */
+    private void onDied(BillingService deadService) {
+      Runnable notification;
+      synchronized (BillingConnectionManager.this) {
+        if (service != deadService) {
+          return;
+        }
+        logger.warn("Billing provider " + provider + " died.");
+        notification = onLost();
+      }
+      run(notification);
+    }
+
+    private Runnable onLost() {
+      boolean died = binder != null && !binder.isBinderAlive();
+      router.removeRoute(service);
+      clearService();
+      status = ProviderStatus.PENDING;
+      scheduleReconnect();
+      return updateState(died);
+    }
+
+    private void clearService() {
+      if (binder != null) {
+        binder.unlinkToDeath(deathRecipient, 0);
+      }
+      service = null;
+      binder = null;
+      deathRecipient = null;
+      failure = null;
+    }
+
+    /**
+     * Binds the provider again if it hasn't reconnected by itself, and tries again later if it
+     * still doesn't.
+     */
+    private void reconnect() {
+      synchronized (BillingConnectionManager.this) {
+        if (released || service != null) {
+          return;
+        }
+        logger.debug("Binding to billing provider again: ", provider);
+        if (connection != null) {
+          context.unbindService(connection);
+          connection = null;
+        }
+        startBinding();
+        scheduleReconnect();
+      }
+    }
+
+    private void scheduleReconnect() {
+      reconnecting = true;
+      mainHandler.removeCallbacks(reconnect);
+      mainHandler.postDelayed(reconnect, reconnectDelayMillis);
+      reconnectDelayMillis = Math.min(reconnectDelayMillis * 2, MAX_RECONNECT_DELAY_MILLIS);
+    }
+
+    void release() {
+      released = true;
+      mainHandler.removeCallbacks(reconnect);
+      if (connection != null) {
+        context.unbindService(connection);
+        connection = null;
+      }
+      clearService();
+    }
+  }
+
+  /**
+   * Checks which billing features the service supports. The in-app and subscription checks don't
+   * depend on each other, so they are all sent at once rather than one after the other.
+   */
+  private SetupResult checkBillingSupport(BillingService service, String packageName) {
+    Future<Integer> subsUpdateResponse =
+        setupExecutor.submit(newBillingSupportCheck(service, 5, packageName, ITEM_TYPE_SUBS));
+    Future<Integer> subsResponse =
+        setupExecutor.submit(newBillingSupportCheck(service, 3, packageName, ITEM_TYPE_SUBS));
+    try {
+      logger.debug("Checking for in-app billing 3 support.");
+
+      // check for in-app billing v3 support
+      int response = service.isBillingSupported(3, packageName, ITEM_TYPE_INAPP);
+      if (response != BILLING_RESPONSE_RESULT_OK) {
+        subsUpdateResponse.cancel(false);
+        subsResponse.cancel(false);
+        // if in-app purchases aren't supported, neither are subscriptions
+        return new SetupResult(new IabResult(response, "Error checking for billing v3 support."),
+            false, false);
+      } else {
+        logger.debug("In-app billing version 3 supported for ", packageName);
+      }
+
+      // Check for v5 subscriptions support. This is needed for
+      // getBuyIntentToReplaceSku which allows for subscription update
+      boolean subscriptionUpdateSupported;
+      boolean subscriptionsSupported;
+      response = getBillingSupportResponse(subsUpdateResponse);
+      if (response == BILLING_RESPONSE_RESULT_OK) {
+        logger.debug("Subscription re-signup AVAILABLE.");
+        subscriptionUpdateSupported = true;
+      } else {
+        logger.debug("Subscription re-signup not available.");
+        subscriptionUpdateSupported = false;
+      }
+
+      if (subscriptionUpdateSupported) {
+        subscriptionsSupported = true;
+      } else {
+        // check for v3 subscriptions support
+        response = getBillingSupportResponse(subsResponse);
+        if (response == BILLING_RESPONSE_RESULT_OK) {
+          logger.debug("Subscriptions AVAILABLE.");
+          subscriptionsSupported = true;
+        } else {
+          logger.debug("Subscriptions NOT AVAILABLE. Response: ", response);
+          subscriptionsSupported = false;
+        }
+      }
+      return new SetupResult(new IabResult(BILLING_RESPONSE_RESULT_OK, "Setup successful."),
+          subscriptionsSupported, subscriptionUpdateSupported);
+    } catch (RemoteException e) {
+      e.printStackTrace();
+      subsUpdateResponse.cancel(false);
+      subsResponse.cancel(false);
+      return new SetupResult(new IabResult(IABHELPER_REMOTE_EXCEPTION,
+          "RemoteException while setting up in-app billing."), false, false);
+    }
+  }
+
+  private static Callable<Integer> newBillingSupportCheck(final BillingService service,
+      final int apiVersion, final String packageName, final String type) {
+    return () -> service.isBillingSupported(apiVersion, packageName, type);
+  }
+
+  private static int getBillingSupportResponse(Future<Integer> response) throws RemoteException {
+    try {
+      return response.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RemoteException) {
+        throw (RemoteException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Interrupted while checking for billing support");
+    }
+  }
+
+  /**
+   * Notified of the state of the shared connection, on the main thread.
+   */
+  interface Client {
+    /**
+     * Called once the service is connected and its billing support checked.
+     *
+     * @param service The service, or null if no provider could be bound.
+     * @param result The outcome of the checks.
+     */
+    void onSetupFinished(BillingService service, SetupResult result);
+
+    /**
+     * Called when the last connected provider goes away. It is then reconnected, and
+     * {@link #onSetupFinished} called again once a provider is back.
+     */
+    void onServiceDisconnected();
+
+    /**
+     * Called instead of {@link #onServiceDisconnected} when the process of the last connected
+     * provider is known to have died. Called on a binder thread, as soon as the death is noticed.
+     */
+    void onServiceDied();
+  }
+
+  /**
+   * Outcome of the billing support checks made when the service connects.
+   */
+  static class SetupResult {
+    final IabResult result;
+    final boolean subscriptionsSupported;
+    final boolean subscriptionUpdateSupported;
+
+    SetupResult(IabResult result, boolean subscriptionsSupported,
+        boolean subscriptionUpdateSupported) {
+      this.result = result;
+      this.subscriptionsSupported = subscriptionsSupported;
+      this.subscriptionUpdateSupported = subscriptionUpdateSupported;
+    }
+  }
+}
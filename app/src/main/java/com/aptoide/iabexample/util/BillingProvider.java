@@ -0,0 +1,51 @@
+package com.aptoide.iabexample.util;
+
+import android.content.Intent;
+import android.os.IBinder;
+
+/**
+ * A billing service that can be bound: an app that implements the billing interface this build
+ * talks to, such as a wallet, found by its bind action and package.
+ */
+public final class BillingProvider {
+  private final String bindAction;
+  private final String bindPackage;
+
+  public BillingProvider(String bindAction, String bindPackage) {
+    this.bindAction = bindAction;
+    this.bindPackage = bindPackage;
+  }
+
+  public String getBindAction() {
+    return bindAction;
+  }
+
+  public String getBindPackage() {
+    return bindPackage;
+  }
+
+  Intent newServiceIntent() {
+    Intent serviceIntent = new Intent(bindAction);
+    serviceIntent.setPackage(bindPackage);
+    return serviceIntent;
+  }
+
+  BillingService create(IBinder binder) {
+    return BillingServiceFactory.create(binder);
+  }
+
+  @Override public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    BillingProvider that = (BillingProvider) o;
+    return bindAction.equals(that.bindAction) && bindPackage.equals(that.bindPackage);
+  }
+
+  @Override public int hashCode() {
+    return 31 * bindAction.hashCode() + bindPackage.hashCode();
+  }
+
+  @Override public String toString() {
+    return bindPackage;
+  }
+}
@@ -0,0 +1,64 @@
+package com.aptoide.iabexample.util;
+
+import com.aptoide.iabexample.BuildConfig;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The billing services the app may use. It holds the one the app is built for, and others can be
+ * registered at runtime, for instance another wallet that implements the same interface.
+ *
+ * {@link BillingConnectionManager} binds every registered provider that is installed, and calls
+ * are routed between them, see {@link RoutingBillingService}. Only registered providers are ever
+ * called: any app can expose a service for a bind action, and one that isn't a genuine wallet
+ * could launch its own buy flow, serve made up prices or fail the queries it takes part in.
+ *
+ * When discovery is enabled with {@link #setDiscoveryEnabled}, the other installed apps that expose
+ * a billing service for the bind action of a registered provider are bound as well, and listed by
+ * {@link BillingConnectionManager#getDiscoveredProviders}, so that the app can register the ones it
+ * trusts without binding them again. Providers registered while the service is bound are otherwise
+ * used the next time it is.
+ */
+public final class BillingProviderRegistry {
+  private static final CopyOnWriteArrayList<BillingProvider> providers =
+      new CopyOnWriteArrayList<>();
+
+  static {
+    providers.add(new BillingProvider(BuildConfig.IAB_BIND_ACTION, BuildConfig.IAB_BIND_PACKAGE));
+  }
+
+  private static volatile boolean discoveryEnabled;
+
+  private BillingProviderRegistry() {
+  }
+
+  public static void register(BillingProvider provider) {
+    providers.addIfAbsent(provider);
+  }
+
+  public static void unregister(BillingProvider provider) {
+    providers.remove(provider);
+  }
+
+  public static List<BillingProvider> getProviders() {
+    return new ArrayList<>(providers);
+  }
+
+  public static boolean isRegistered(BillingProvider provider) {
+    return providers.contains(provider);
+  }
+
+  /**
+   * @param enabled Whether the installed apps that expose a billing service for the bind action of
+   * a registered provider are bound as well, to be offered for registration. They aren't called
+   * until they are registered. Disabled by default.
+   */
+  public static void setDiscoveryEnabled(boolean enabled) {
+    discoveryEnabled = enabled;
+  }
+
+  public static boolean isDiscoveryEnabled() {
+    return discoveryEnabled;
+  }
+}
@@ -0,0 +1,112 @@
+package com.aptoide.iabexample.util;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link AsyncBillingService} on top of a synchronous {@link BillingService}, such as
+ * {@link BillingServiceFactory#create}'s service for the wallet of this build.
+ *
+ * The wallets only implement the synchronous interface, so each call still blocks a thread while
+ * the wallet answers, but the calls share a small pool of threads: however many calls are
+ * outstanding, the ones that don't fit in the pool wait in its queue instead of holding a thread
+ * of their own. Callbacks are called on the pool's threads. A call that fails with a
+ * {@link RuntimeException} is reported to {@link Callback#onError} as a {@link RemoteException}
+ * caused by it.
+ */
+public class BillingServiceAsyncAdapter implements AsyncBillingService {
+  // More calls at once than this only make the wallet slower to answer each of them
+  private static final int MAX_CONCURRENT_CALLS = 4;
+  private static ExecutorService sharedExecutor;
+
+  private final BillingService service;
+  private final Executor executor;
+
+  /**
+   * Makes the calls on a pool shared by all the adapters created this way.
+   */
+  public BillingServiceAsyncAdapter(BillingService service) {
+    this(service, getSharedExecutor());
+  }
+
+  /**
+   * @param executor Runs the calls to the service, and then the callbacks.
+   */
+  public BillingServiceAsyncAdapter(BillingService service, Executor executor) {
+    this.service = service;
+    this.executor = executor;
+  }
+
+  private static synchronized ExecutorService getSharedExecutor() {
+    if (sharedExecutor == null) {
+      sharedExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_CALLS, runnable -> {
+        Thread thread = new Thread(runnable, "BillingService-call");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return sharedExecutor;
+  }
+
+  @Override public void isBillingSupported(final int apiVersion, final String packageName,
+      final String type, Callback<Integer> callback) {
+    call(() -> service.isBillingSupported(apiVersion, packageName, type), callback);
+  }
+
+  @Override public void getSkuDetails(final int apiVersion, final String packageName,
+      final String type, final Bundle skusBundle, Callback<Bundle> callback) {
+    call(() -> service.getSkuDetails(apiVersion, packageName, type, skusBundle), callback);
+  }
+
+  @Override public void getBuyIntent(final int apiVersion, final String packageName,
+      final String sku, final String type, final String developerPayload,
+      Callback<Bundle> callback) {
+    call(() -> service.getBuyIntent(apiVersion, packageName, sku, type, developerPayload),
+        callback);
+  }
+
+  @Override public void getPurchases(final int apiVersion, final String packageName,
+      final String type, final String continuationToken, Callback<Bundle> callback) {
+    call(() -> service.getPurchases(apiVersion, packageName, type, continuationToken), callback);
+  }
+
+  @Override public void consumePurchase(final int apiVersion, final String packageName,
+      final String purchaseToken, Callback<Integer> callback) {
+    call(() -> service.consumePurchase(apiVersion, packageName, purchaseToken), callback);
+  }
+
+  @Override public void getBuyIntentToReplaceSkus(final int apiVersion, final String packageName,
+      final List<String> oldSkus, final String newSku, final String type,
+      final String developerPayload, Callback<Bundle> callback) {
+    call(() -> service.getBuyIntentToReplaceSkus(apiVersion, packageName, oldSkus, newSku, type,
+        developerPayload), callback);
+  }
+
+  private <T> void call(final Call<T> call, final Callback<T> callback) {
+    executor.execute(() -> {
+      T result;
+      try {
+        result = call.call();
+      } catch (RemoteException e) {
+        callback.onError(e);
+        return;
+      } catch (RuntimeException e) {
+        // Such as a SecurityException or an unexpected answer, which must not leave the callback
+        // without an outcome or kill the pool's thread
+        RemoteException error = new RemoteException(e.toString());
+        error.initCause(e);
+        callback.onError(error);
+        return;
+      }
+      callback.onResult(result);
+    });
+  }
+
+  private interface Call<T> {
+    T call() throws RemoteException;
+  }
+}
@@ -0,0 +1,274 @@
+package com.aptoide.iabexample.util;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.aptoide.iabexample.util.IabHelper.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED;
+import static com.aptoide.iabexample.util.IabHelper.BILLING_RESPONSE_RESULT_OK;
+
+/**
+ * Latencies, errors and response codes of the calls made to the billing service, see
+ * {@link InstrumentedBillingService}.
+ *
+ * Calls are counted per method with atomic counters only, so recording a call doesn't take a
+ * lock and costs next to nothing next to the binder transaction it measures. Latencies go in a
+ * histogram of power of two buckets, from under 1 ms to over 32 s, from which percentiles are
+ * estimated. The numbers can be read at any time with {@link #getStats} and written out with
+ * {@link #dump}.
+ */
+public final class BillingServiceMetrics {
+  // Upper bounds of the latency buckets are 1 ms, 2 ms, 4 ms... 32768 ms, the last one is open
+  private static final int LATENCY_BUCKETS = 17;
+  // Response codes from OK to ITEM_NOT_OWNED, the last slot counts any other code
+  private static final int RESPONSE_CODES = BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED + 2;
+
+  private final Map<Method, Counters> counters = new EnumMap<>(Method.class);
+
+  BillingServiceMetrics() {
+    for (Method method : Method.values()) {
+      counters.put(method, new Counters());
+    }
+  }
+
+  /**
+   * Records a call that got an answer.
+   *
+   * @param responseCode The response code of the answer.
+   */
+  void recordResponse(Method method, long latencyNanos, int responseCode) {
+    Counters methodCounters = counters.get(method);
+    methodCounters.record(latencyNanos);
+    int index = responseCode >= BILLING_RESPONSE_RESULT_OK && responseCode < RESPONSE_CODES - 1
+        ? responseCode : RESPONSE_CODES - 1;
+    methodCounters.responseCodes.incrementAndGet(index);
+  }
+
+  /**
+   * Records a call that failed with a {@link android.os.RemoteException}.
+   */
+  void recordError(Method method, long latencyNanos) {
+    Counters methodCounters = counters.get(method);
+    methodCounters.record(latencyNanos);
+    methodCounters.errors.incrementAndGet();
+  }
+
+  /**
+   * @return What was recorded so far for the method.
+   */
+  public MethodStats getStats(Method method) {
+    return counters.get(method)
+        .snapshot(method);
+  }
+
+  /**
+   * Forgets everything recorded so far.
+   */
+  public void reset() {
+    for (Counters methodCounters : counters.values()) {
+      methodCounters.reset();
+    }
+  }
+
+  /**
+   * Writes the stats of every method that was called, one per line.
+   */
+  public void dump(PrintWriter writer) {
+    for (Method method : Method.values()) {
+      MethodStats stats = getStats(method);
+      if (stats.getCalls() > 0) {
+        writer.println(stats);
+      }
+    }
+    writer.flush();
+  }
+
+  /**
+   * The methods of {@link BillingService}.
+   */
+  public enum Method {
+    IS_BILLING_SUPPORTED, GET_SKU_DETAILS, GET_BUY_INTENT, GET_PURCHASES, CONSUME_PURCHASE,
+    GET_BUY_INTENT_TO_REPLACE_SKUS
+  }
+
+  private static final class Counters {
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong totalLatencyNanos = new AtomicLong();
+    final AtomicLong maxLatencyNanos = new AtomicLong();
+    final AtomicLongArray latencyBuckets = new AtomicLongArray(LATENCY_BUCKETS);
+    final AtomicLongArray responseCodes = new AtomicLongArray(RESPONSE_CODES);
+
+    void record(long latencyNanos) {
+      calls.incrementAndGet();
+      totalLatencyNanos.addAndGet(latencyNanos);
+      long max;
+      do {
+        max = maxLatencyNanos.get();
+      } while (latencyNanos > max && !maxLatencyNanos.compareAndSet(max, latencyNanos));
+      latencyBuckets.incrementAndGet(getBucket(latencyNanos / 1000000));
+    }
+
+    void reset() {
+      calls.set(0);
+      errors.set(0);
+      totalLatencyNanos.set(0);
+      maxLatencyNanos.set(0);
+      for (int i = 0; i < LATENCY_BUCKETS; i++) {
+        latencyBuckets.set(i, 0);
+      }
+      for (int i = 0; i < RESPONSE_CODES; i++) {
+        responseCodes.set(i, 0);
+      }
+    }
+
+    MethodStats snapshot(Method method) {
+      long[] buckets = new long[LATENCY_BUCKETS];
+      for (int i = 0; i < LATENCY_BUCKETS; i++) {
+        buckets[i] = latencyBuckets.get(i);
+      }
+      Map<Integer, Long> codes = new LinkedHashMap<>();
+      long otherCodes = 0;
+      for (int i = 0; i < RESPONSE_CODES; i++) {
+        long count = responseCodes.get(i);
+        if (count == 0) {
+          continue;
+        }
+        if (i < RESPONSE_CODES - 1) {
+          codes.put(i, count);
+        } else {
+          otherCodes = count;
+        }
+      }
+      return new MethodStats(method, calls.get(), errors.get(), totalLatencyNanos.get() / 1000000,
+          maxLatencyNanos.get() / 1000000, buckets, codes, otherCodes);
+    }
+
+    private static int getBucket(long latencyMillis) {
+      // Bucket i holds the latencies under 2^i ms
+      int bucket = 64 - Long.numberOfLeadingZeros(latencyMillis);
+      return Math.min(bucket, LATENCY_BUCKETS - 1);
+    }
+  }
+
+  /**
+   * Snapshot of what was recorded for a method. Being read without a lock, its numbers may be a
+   * call apart from one another.
+   */
+  public static final class MethodStats {
+    private final Method method;
+    private final long calls;
+    private final long errors;
+    private final long totalLatencyMillis;
+    private final long maxLatencyMillis;
+    private final long[] latencyBuckets;
+    private final Map<Integer, Long> responseCodes;
+    private final long otherResponseCodes;
+
+    MethodStats(Method method, long calls, long errors, long totalLatencyMillis,
+        long maxLatencyMillis, long[] latencyBuckets, Map<Integer, Long> responseCodes,
+        long otherResponseCodes) {
+      this.method = method;
+      this.calls = calls;
+      this.errors = errors;
+      this.totalLatencyMillis = totalLatencyMillis;
+      this.maxLatencyMillis = maxLatencyMillis;
+      this.latencyBuckets = latencyBuckets;
+      this.responseCodes = Collections.unmodifiableMap(responseCodes);
+      this.otherResponseCodes = otherResponseCodes;
+    }
+
+    public Method getMethod() {
+      return method;
+    }
+
+    /** Calls made, whether they got an answer or not. */
+    public long getCalls() {
+      return calls;
+    }
+
+    /** Calls that failed with a remote exception. */
+    public long getErrors() {
+      return errors;
+    }
+
+    public long getAverageLatencyMillis() {
+      return calls == 0 ? 0 : totalLatencyMillis / calls;
+    }
+
+    public long getMaxLatencyMillis() {
+      return maxLatencyMillis;
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 1.
+     *
+     * @return The upper bound of the latency bucket that share of the calls fall in, which is at
+     * most twice the actual latency, or -1 if there were no calls.
+     */
+    public long getLatencyPercentileMillis(double percentile) {
+      long total = 0;
+      for (long count : latencyBuckets) {
+        total += count;
+      }
+      if (total == 0) {
+        return -1;
+      }
+      long target = Math.max(1, (long) Math.ceil(percentile * total));
+      long seen = 0;
+      for (int i = 0; i < latencyBuckets.length; i++) {
+        seen += latencyBuckets[i];
+        if (seen >= target) {
+          return i == latencyBuckets.length - 1 ? maxLatencyMillis : 1L << i;
+        }
+      }
+      return maxLatencyMillis;
+    }
+
+    /**
+     * @return The number of calls under each latency bucket upper bound, 1 ms, 2 ms, 4 ms and so
+     * on, the last bucket taking everything above.
+     */
+    public long[] getLatencyHistogram() {
+      return latencyBuckets.clone();
+    }
+
+    /**
+     * @return How many answers came with each known response code, see
+     * {@link IabHelper#getResponseDesc}.
+     */
+    public Map<Integer, Long> getResponseCodes() {
+      return responseCodes;
+    }
+
+    /** Answers that came with a response code that isn't a known billing response. */
+    public long getOtherResponseCodes() {
+      return otherResponseCodes;
+    }
+
+    @Override public String toString() {
+      return method
+          + ": calls="
+          + calls
+          + ", errors="
+          + errors
+          + ", avg="
+          + getAverageLatencyMillis()
+          + "ms, p50<="
+          + getLatencyPercentileMillis(0.5)
+          + "ms, p90<="
+          + getLatencyPercentileMillis(0.9)
+          + "ms, p99<="
+          + getLatencyPercentileMillis(0.99)
+          + "ms, max="
+          + maxLatencyMillis
+          + "ms, responseCodes="
+          + responseCodes
+          + (otherResponseCodes > 0 ? ", otherResponseCodes=" + otherResponseCodes : "");
+    }
+  }
+}
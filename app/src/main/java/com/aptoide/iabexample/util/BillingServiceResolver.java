@@ -0,0 +1,146 @@
+package com.aptoide.iabexample.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ResolveInfo;
+import android.os.PatternMatcher;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tells whether a billing provider is installed on the device.
+ *
+ * Asking the package manager is a call to the system, so the answer is kept until the package of
+ * the provider is installed, removed or updated. It is still a blocking call the first
+ * time, so {@link #isServiceAvailable()} must not be called from the main thread.
+ *
+ * Other installed providers of the same billing interface can be found with
+ * {@link #findProviders}, with the same restriction. What it finds is kept as well, until any
+ * package is installed, removed or updated.
+ */
+class BillingServiceResolver {
+  // Providers found for each bind action, guarded by the class
+  private static final Map<String, List<BillingProvider>> discovered = new HashMap<>();
+  private static boolean watchingPackages;
+  // Changes every time the providers found are forgotten, so that outdated ones aren't kept
+  private static int discoveryGeneration;
+
+  private final Context context;
+  private final BillingProvider provider;
+  private Boolean serviceAvailable;
+  // Changes every time the answer is invalidated, so that an outdated one isn't kept
+  private int generation;
+
+  BillingServiceResolver(Context context, BillingProvider provider) {
+    this.context = context.getApplicationContext();
+    this.provider = provider;
+    IntentFilter filter = new IntentFilter();
+    filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+    filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+    filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+    filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+    filter.addDataScheme("package");
+    filter.addDataSchemeSpecificPart(provider.getBindPackage(), PatternMatcher.PATTERN_LITERAL);
+    this.context.registerReceiver(new BroadcastReceiver() {
+      @Override public void onReceive(Context context, Intent intent) {
+        invalidate();
+      }
+    }, filter);
+  }
+
+  /**
+   * @return true if the provider is installed.
+   */
+  boolean isServiceAvailable() {
+    int queryGeneration;
+    synchronized (this) {
+      if (serviceAvailable != null) {
+        return serviceAvailable;
+      }
+      queryGeneration = generation;
+    }
+    Intent serviceIntent = provider.newServiceIntent();
+    List<ResolveInfo> intentServices =
+        context.getPackageManager().queryIntentServices(serviceIntent, 0);
+    boolean available = intentServices != null && !intentServices.isEmpty();
+    synchronized (this) {
+      if (generation == queryGeneration) {
+        serviceAvailable = available;
+      }
+    }
+    return available;
+  }
+
+  /**
+   * Finds the installed apps that expose a billing service for the bind action, whatever their
+   * package. Blocking the first time, must not be called from the main thread.
+   *
+   * @return A provider for each of them.
+   */
+  static List<BillingProvider> findProviders(Context context, String bindAction) {
+    int queryGeneration;
+    synchronized (BillingServiceResolver.class) {
+      if (!watchingPackages) {
+        watchPackages(context.getApplicationContext());
+        watchingPackages = true;
+      }
+      List<BillingProvider> providers = discovered.get(bindAction);
+      if (providers != null) {
+        return new ArrayList<>(providers);
+      }
+      queryGeneration = discoveryGeneration;
+    }
+    List<BillingProvider> providers = new ArrayList<>();
+    List<ResolveInfo> intentServices =
+        context.getPackageManager().queryIntentServices(new Intent(bindAction), 0);
+    if (intentServices != null) {
+      for (ResolveInfo intentService : intentServices) {
+        if (intentService.serviceInfo != null) {
+          BillingProvider provider =
+              new BillingProvider(bindAction, intentService.serviceInfo.packageName);
+          if (!providers.contains(provider)) {
+            providers.add(provider);
+          }
+        }
+      }
+    }
+    synchronized (BillingServiceResolver.class) {
+      if (discoveryGeneration == queryGeneration) {
+        discovered.put(bindAction, new ArrayList<>(providers));
+      }
+    }
+    return providers;
+  }
+
+  // Any package may add or remove a billing service, so the providers found are forgotten
+  // whenever one changes
+  private static void watchPackages(Context context) {
+    IntentFilter filter = new IntentFilter();
+    filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+    filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+    filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+    filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+    filter.addDataScheme("package");
+    context.registerReceiver(new BroadcastReceiver() {
+      @Override public void onReceive(Context context, Intent intent) {
+        synchronized (BillingServiceResolver.class) {
+          discovered.clear();
+          discoveryGeneration++;
+        }
+      }
+    }, filter);
+  }
+
+  /**
+   * Forgets the cached answer, for when binding the service failed even though it was thought to
+   * be available.
+   */
+  synchronized void invalidate() {
+    serviceAvailable = null;
+    generation++;
+  }
+}
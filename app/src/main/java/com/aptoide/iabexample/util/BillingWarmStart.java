@@ -0,0 +1,94 @@
+package com.aptoide.iabexample.util;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.List;
+
+/**
+ * Gets in-app billing ready before the first Activity needs it.
+ *
+ * Started from {@link android.app.Application#onCreate}, it binds the billing service, which is
+ * resolved and bound from a background thread, and once the service is set up, fetches the owned
+ * purchases and the details of the given SKUs. The {@link IabHelper} an Activity then creates
+ * shares the connection that is already bound, see {@link BillingConnectionManager}, so its setup
+ * finishes right away, and it can take the prefetched inventory with {@link #takeInventory()}
+ * instead of querying it again.
+ *
+ * The warm connection is kept for a while after the prefetch, long enough for the first Activity
+ * to attach to it, and then released.
+ */
+public final class BillingWarmStart {
+  // How long the prefetched inventory can be used for
+  public static final long MAX_INVENTORY_AGE_MILLIS = IabHelper.TWO_MINUTES;
+  // How long the warm connection is kept after the prefetch
+  private static final long KEEP_BOUND_MILLIS = 60000;
+  private static final String TAG = BillingWarmStart.class.getSimpleName();
+
+  private static boolean started;
+  private static Inventory inventory;
+  private static long inventoryFetchedAtMillis;
+
+  private BillingWarmStart() {
+  }
+
+  /**
+   * Starts binding the billing service and prefetching the inventory. Returns right away. Only the
+   * first call has an effect.
+   *
+   * @param base64PublicKey The app's public key, as for {@link IabHelper}.
+   * @param itemSkus The products whose details are prefetched.
+   * @param subsSkus The subscriptions whose details are prefetched.
+   */
+  public static void start(Context context, String base64PublicKey, final List<String> itemSkus,
+      final List<String> subsSkus) {
+    synchronized (BillingWarmStart.class) {
+      if (started) return;
+      started = true;
+    }
+    final IabHelper helper = new IabHelper(context, base64PublicKey);
+    helper.startSetup(result -> {
+      if (!result.isSuccess()) {
+        Log.w(TAG, "Billing warm start failed: " + result);
+        helper.disposeWhenFinished();
+        return;
+      }
+      try {
+        helper.queryInventoryAsync(true, itemSkus, subsSkus, (queryResult, inv) -> {
+          if (queryResult.isSuccess()) {
+            setInventory(inv);
+          } else {
+            Log.w(TAG, "Inventory prefetch failed: " + queryResult);
+          }
+          new Handler(Looper.getMainLooper()).postDelayed(helper::disposeWhenFinished,
+              KEEP_BOUND_MILLIS);
+        });
+      } catch (IabHelper.IabAsyncInProgressException e) {
+        helper.disposeWhenFinished();
+      }
+    });
+  }
+
+  /**
+   * Returns the prefetched inventory, if it is recent enough, and forgets it so it is only used
+   * once: after that, the inventory must be queried again.
+   *
+   * @return The prefetched inventory, or null if there isn't one.
+   */
+  public static synchronized Inventory takeInventory() {
+    Inventory prefetched = inventory;
+    inventory = null;
+    if (prefetched == null
+        || SystemClock.elapsedRealtime() - inventoryFetchedAtMillis > MAX_INVENTORY_AGE_MILLIS) {
+      return null;
+    }
+    return prefetched;
+  }
+
+  private static synchronized void setInventory(Inventory prefetched) {
+    inventory = prefetched;
+    inventoryFetchedAtMillis = SystemClock.elapsedRealtime();
+  }
+}
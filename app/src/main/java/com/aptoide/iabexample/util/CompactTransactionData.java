@@ -0,0 +1,178 @@
+package com.aptoide.iabexample.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Compact binary encoding of {@link GenericPaymentIntentBuilder.TransactionData}, used as an
+ * alternative to the JSON document sent in the EIP681 data field. Every byte of that field ends up
+ * as transaction calldata, so dropping the JSON field names and quoting makes the transaction
+ * cheaper.
+ *
+ * Layout (version 1):
+ * <pre>
+ *   header   1 byte   {@link #HEADER_V1}
+ *   type     1 byte   {@link #TYPE_CODE_INAPP}, {@link #TYPE_CODE_DONATION} or
+ *                     {@link #TYPE_CODE_CUSTOM} followed by the type as a string
+ *   domain   string
+ *   skuId    string
+ *   payload  string
+ * </pre>
+ * A string is a varint holding its UTF-8 length plus one, followed by the UTF-8 bytes. A length
+ * of zero stands for a null value.
+ *
+ * The header has the two high bits set, which is never a valid first byte of a UTF-8 encoded JSON
+ * document, so {@link #isCompact(byte[])} can tell both formats apart.
+ */
+public final class CompactTransactionData {
+  /** Header of the version 1 layout. */
+  public static final int HEADER_V1 = 0xC1;
+  /** Type code for {@link GenericPaymentIntentBuilder.TransactionData#TYPE_INAPP}. */
+  public static final int TYPE_CODE_INAPP = 1;
+  /** Type code for {@link GenericPaymentIntentBuilder.TransactionData#TYPE_DONATION}. */
+  public static final int TYPE_CODE_DONATION = 2;
+  /** Type code for any other type, which is then written as a string. */
+  public static final int TYPE_CODE_CUSTOM = 0;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private CompactTransactionData() {
+  }
+
+  /**
+   * Encodes the transaction data using the latest compact layout.
+   *
+   * @param transactionData The transaction data to encode.
+   *
+   * @return The encoded bytes.
+   */
+  public static byte[] encode(GenericPaymentIntentBuilder.TransactionData transactionData) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+    out.write(HEADER_V1);
+    String type = transactionData.type;
+    if (GenericPaymentIntentBuilder.TransactionData.TYPE_INAPP.equals(type)) {
+      out.write(TYPE_CODE_INAPP);
+    } else if (GenericPaymentIntentBuilder.TransactionData.TYPE_DONATION.equals(type)) {
+      out.write(TYPE_CODE_DONATION);
+    } else {
+      out.write(TYPE_CODE_CUSTOM);
+      writeString(out, type);
+    }
+    writeString(out, transactionData.domain);
+    writeString(out, transactionData.skuId);
+    writeString(out, transactionData.payload);
+    return out.toByteArray();
+  }
+
+  /**
+   * Decodes transaction data previously encoded with {@link #encode}.
+   *
+   * @param data The encoded bytes.
+   *
+   * @return The decoded transaction data.
+   *
+   * @throws IllegalArgumentException if the data is not in a known compact layout or is truncated.
+   */
+  public static GenericPaymentIntentBuilder.TransactionData decode(byte[] data) {
+    if (!isCompact(data)) {
+      throw new IllegalArgumentException("Not a compact transaction data encoding.");
+    }
+    Reader reader = new Reader(data, 1);
+    String type;
+    int typeCode = reader.readByte();
+    switch (typeCode) {
+      case TYPE_CODE_INAPP:
+        type = GenericPaymentIntentBuilder.TransactionData.TYPE_INAPP;
+        break;
+      case TYPE_CODE_DONATION:
+        type = GenericPaymentIntentBuilder.TransactionData.TYPE_DONATION;
+        break;
+      case TYPE_CODE_CUSTOM:
+        type = reader.readString();
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown transaction type code: " + typeCode);
+    }
+    String domain = reader.readString();
+    String skuId = reader.readString();
+    String payload = reader.readString();
+    if (reader.hasRemaining()) {
+      throw new IllegalArgumentException("Unexpected trailing bytes in transaction data.");
+    }
+    return new GenericPaymentIntentBuilder.TransactionData(type, domain, skuId, payload);
+  }
+
+  /**
+   * @param data The transaction data bytes, as sent in the EIP681 data field.
+   *
+   * @return true if the data uses the compact layout, false if it is (or might be) JSON.
+   */
+  public static boolean isCompact(byte[] data) {
+    return data != null && data.length > 0 && (data[0] & 0xFF) == HEADER_V1;
+  }
+
+  private static void writeString(ByteArrayOutputStream out, String value) {
+    if (value == null) {
+      writeVarInt(out, 0);
+      return;
+    }
+    byte[] bytes = value.getBytes(UTF_8);
+    writeVarInt(out, bytes.length + 1);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static final class Reader {
+    private final byte[] data;
+    private int position;
+
+    Reader(byte[] data, int position) {
+      this.data = data;
+      this.position = position;
+    }
+
+    int readByte() {
+      if (position >= data.length) {
+        throw new IllegalArgumentException("Truncated transaction data.");
+      }
+      return data[position++] & 0xFF;
+    }
+
+    int readVarInt() {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        int b = readByte();
+        value |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("Malformed length in transaction data.");
+    }
+
+    String readString() {
+      int length = readVarInt();
+      if (length == 0) {
+        return null;
+      }
+      length--;
+      if (length < 0 || length > data.length - position) {
+        throw new IllegalArgumentException("Truncated transaction data.");
+      }
+      String value = new String(data, position, length, UTF_8);
+      position += length;
+      return value;
+    }
+
+    boolean hasRemaining() {
+      return position < data.length;
+    }
+  }
+}
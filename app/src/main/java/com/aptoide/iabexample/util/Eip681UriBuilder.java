@@ -0,0 +1,193 @@
+package com.aptoide.iabexample.util;
+
+import com.google.gson.Gson;
+import java.io.Writer;
+import java.math.BigDecimal;
+
+/**
+ * Builds the EIP681 URI used by {@link GenericPaymentIntentBuilder}.
+ *
+ * The whole URI is written into a single buffer that is sized up front from the length of its
+ * parts. The transaction data is serialized by a shared {@link Gson} instance straight into a
+ * writer that hex encodes its UTF-8 bytes as they are produced, so no intermediate JSON string or
+ * byte array is created. When the compact encoding is requested, the data is encoded with
+ * {@link CompactTransactionData} instead and its bytes are hex encoded into the same buffer. An
+ * instance can be reused to build several URIs, but it is not thread safe.
+ */
+final class Eip681UriBuilder {
+  private static final Gson GSON = new Gson();
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private static final String SCHEME = "ethereum:";
+  private static final String BUY_FUNCTION = "/buy?uint256=";
+  private static final String ADDRESS_PARAMETER = "&address=";
+  private static final String DATA_PARAMETER = "&data=0x";
+  private static final String IAB_CONTRACT_PARAMETER = "&iabContractAddress=";
+  // Length of an hex encoded ethereum address including the 0x prefix
+  private static final int ADDRESS_LENGTH = 42;
+  // Length of the JSON field names, quotes, colons and commas of the transaction data
+  private static final int TRANSACTION_DATA_OVERHEAD = 48;
+  // Enough digits for the network id and a wei amount with some decimal places
+  private static final int NUMBERS_LENGTH = 48;
+
+  private final StringBuilder buffer;
+  private final Utf8HexWriter hexWriter;
+
+  Eip681UriBuilder() {
+    buffer = new StringBuilder(512);
+    hexWriter = new Utf8HexWriter(buffer);
+  }
+
+  /**
+   * Builds the EIP681 URI for a transfer to the iab contract.
+   *
+   * @param tokenContractAddress The address of the AppCoins token contract.
+   * @param networkId The id of the network where the transaction is to be done.
+   * @param amount The value to be transferred, already in the token's smallest unit.
+   * @param walletAddress The wallet address to transfer the value to.
+   * @param transactionData The data to be sent with the transaction.
+   * @param compactData If true the data is sent using {@link CompactTransactionData}, otherwise
+   * it is sent as JSON.
+   * @param iabContractAddress The address of the iab contract.
+   *
+   * @return The EIP681 URI as a string.
+   */
+  String build(String tokenContractAddress, int networkId, BigDecimal amount,
+      String walletAddress, GenericPaymentIntentBuilder.TransactionData transactionData,
+      boolean compactData, String iabContractAddress) {
+    buffer.setLength(0);
+    buffer.ensureCapacity(estimateLength(transactionData));
+
+    buffer.append(SCHEME)
+        .append(tokenContractAddress)
+        .append('@')
+        .append(networkId)
+        .append(BUY_FUNCTION)
+        .append(amount.toString())
+        .append(ADDRESS_PARAMETER)
+        .append(walletAddress)
+        .append(DATA_PARAMETER);
+    if (compactData) {
+      appendHex(CompactTransactionData.encode(transactionData));
+    } else {
+      GSON.toJson(transactionData, hexWriter);
+      hexWriter.close();
+    }
+    buffer.append(IAB_CONTRACT_PARAMETER)
+        .append(iabContractAddress);
+
+    return buffer.toString();
+  }
+
+  private void appendHex(byte[] bytes) {
+    for (byte value : bytes) {
+      buffer.append(HEX_DIGITS[(value >> 4) & 0xF])
+          .append(HEX_DIGITS[value & 0xF]);
+    }
+  }
+
+  private static int estimateLength(GenericPaymentIntentBuilder.TransactionData transactionData) {
+    int dataLength = TRANSACTION_DATA_OVERHEAD
+        + length(transactionData.type)
+        + length(transactionData.domain)
+        + length(transactionData.skuId)
+        + length(transactionData.payload);
+    return SCHEME.length()
+        + BUY_FUNCTION.length()
+        + ADDRESS_PARAMETER.length()
+        + DATA_PARAMETER.length()
+        + IAB_CONTRACT_PARAMETER.length()
+        + 3 * ADDRESS_LENGTH
+        + NUMBERS_LENGTH
+        + 2 * dataLength;
+  }
+
+  private static int length(String value) {
+    return value == null ? 0 : value.length();
+  }
+
+  /**
+   * Writer that encodes every char written to it as UTF-8 and appends the resulting bytes, hex
+   * encoded, to a {@link StringBuilder}. Malformed surrogates are replaced by '?', the same way
+   * {@link String#getBytes(String)} does.
+   */
+  private static final class Utf8HexWriter extends Writer {
+    private final StringBuilder out;
+    private char pendingHighSurrogate;
+
+    Utf8HexWriter(StringBuilder out) {
+      this.out = out;
+    }
+
+    @Override public void write(int c) {
+      encode((char) c);
+    }
+
+    @Override public void write(char[] chars, int offset, int length) {
+      for (int i = offset; i < offset + length; i++) {
+        encode(chars[i]);
+      }
+    }
+
+    @Override public void write(String str, int offset, int length) {
+      for (int i = offset; i < offset + length; i++) {
+        encode(str.charAt(i));
+      }
+    }
+
+    @Override public void flush() {
+    }
+
+    /**
+     * Flushes a dangling high surrogate, if any. The writer can still be used afterwards.
+     */
+    @Override public void close() {
+      if (pendingHighSurrogate != 0) {
+        pendingHighSurrogate = 0;
+        appendByte('?');
+      }
+    }
+
+    private void encode(char c) {
+      if (pendingHighSurrogate != 0) {
+        char highSurrogate = pendingHighSurrogate;
+        pendingHighSurrogate = 0;
+        if (Character.isLowSurrogate(c)) {
+          appendCodePoint(Character.toCodePoint(highSurrogate, c));
+          return;
+        }
+        appendByte('?');
+      }
+      if (Character.isHighSurrogate(c)) {
+        pendingHighSurrogate = c;
+      } else if (Character.isLowSurrogate(c)) {
+        appendByte('?');
+      } else {
+        appendCodePoint(c);
+      }
+    }
+
+    private void appendCodePoint(int codePoint) {
+      if (codePoint < 0x80) {
+        appendByte(codePoint);
+      } else if (codePoint < 0x800) {
+        appendByte(0xC0 | (codePoint >> 6));
+        appendByte(0x80 | (codePoint & 0x3F));
+      } else if (codePoint < 0x10000) {
+        appendByte(0xE0 | (codePoint >> 12));
+        appendByte(0x80 | ((codePoint >> 6) & 0x3F));
+        appendByte(0x80 | (codePoint & 0x3F));
+      } else {
+        appendByte(0xF0 | (codePoint >> 18));
+        appendByte(0x80 | ((codePoint >> 12) & 0x3F));
+        appendByte(0x80 | ((codePoint >> 6) & 0x3F));
+        appendByte(0x80 | (codePoint & 0x3F));
+      }
+    }
+
+    private void appendByte(int value) {
+      out.append(HEX_DIGITS[(value >> 4) & 0xF])
+          .append(HEX_DIGITS[value & 0xF]);
+    }
+  }
+}
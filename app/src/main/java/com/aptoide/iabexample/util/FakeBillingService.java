@@ -0,0 +1,200 @@
+package com.aptoide.iabexample.util;
+
+import android.os.Bundle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static com.aptoide.iabexample.util.IabHelper.BILLING_RESPONSE_RESULT_ERROR;
+import static com.aptoide.iabexample.util.IabHelper.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED;
+import static com.aptoide.iabexample.util.IabHelper.BILLING_RESPONSE_RESULT_OK;
+import static com.aptoide.iabexample.util.IabHelper.GET_SKU_DETAILS_ITEM_LIST;
+import static com.aptoide.iabexample.util.IabHelper.RESPONSE_CODE;
+import static com.aptoide.iabexample.util.IabHelper.RESPONSE_GET_SKU_DETAILS_LIST;
+import static com.aptoide.iabexample.util.IabHelper.RESPONSE_INAPP_ITEM_LIST;
+import static com.aptoide.iabexample.util.IabHelper.RESPONSE_INAPP_PURCHASE_DATA_LIST;
+import static com.aptoide.iabexample.util.IabHelper.RESPONSE_INAPP_SIGNATURE_LIST;
+
+/**
+ * Billing service that runs in the app's process, so billing code can be exercised without a
+ * wallet installed.
+ *
+ * It answers from the SKU details and purchases it is given with {@link #addSkuDetails} and
+ * {@link #addPurchase}, and consuming a purchase removes it. Every type is supported unless told
+ * otherwise with {@link #setBillingSupported}. Buy flows need the wallet's Activity, so buy
+ * intents are answered with {@link IabHelper#BILLING_RESPONSE_RESULT_ERROR}.
+ *
+ * It implements both {@link BillingService} and {@link AsyncBillingService}. Asynchronous calls
+ * are answered without blocking any thread, with the callbacks run by the executor it is given.
+ */
+public class FakeBillingService implements BillingService, AsyncBillingService {
+  private final Executor callbackExecutor;
+  private final Map<String, Integer> billingSupport = new HashMap<>();
+  // SKU details by type, then by SKU
+  private final Map<String, Map<String, String>> skuDetails = new HashMap<>();
+  // Purchases by token, in the order they were added
+  private final Map<String, FakePurchase> purchases = new LinkedHashMap<>();
+
+  /**
+   * Runs the callbacks of asynchronous calls right away, on the calling thread.
+   */
+  public FakeBillingService() {
+    this(Runnable::run);
+  }
+
+  /**
+   * @param callbackExecutor Runs the callbacks of asynchronous calls.
+   */
+  public FakeBillingService(Executor callbackExecutor) {
+    this.callbackExecutor = callbackExecutor;
+  }
+
+  /**
+   * @param responseCode What {@link #isBillingSupported} answers for the type.
+   */
+  public synchronized void setBillingSupported(String type, int responseCode) {
+    billingSupport.put(type, responseCode);
+  }
+
+  /**
+   * @param json The details, in the JSON format of the getSkuDetails answer, see
+   * {@link SkuDetails}.
+   */
+  public synchronized void addSkuDetails(String type, String sku, String json) {
+    Map<String, String> details = skuDetails.get(type);
+    if (details == null) {
+      details = new HashMap<>();
+      skuDetails.put(type, details);
+    }
+    details.put(sku, json);
+  }
+
+  /**
+   * @param purchaseData The purchase, in the JSON format of the getPurchases answer, see
+   * {@link Purchase}.
+   * @param signature The signature of the purchase data, which must be valid for the app's
+   * public key for {@link IabHelper} to accept the purchase.
+   */
+  public synchronized void addPurchase(String type, String sku, String token, String purchaseData,
+      String signature) {
+    purchases.put(token, new FakePurchase(type, sku, purchaseData, signature));
+  }
+
+  @Override public synchronized int isBillingSupported(int apiVersion, String packageName,
+      String type) {
+    Integer responseCode = billingSupport.get(type);
+    return responseCode == null ? BILLING_RESPONSE_RESULT_OK : responseCode;
+  }
+
+  @Override public synchronized Bundle getSkuDetails(int apiVersion, String packageName,
+      String type, Bundle skusBundle) {
+    ArrayList<String> detailsList = new ArrayList<>();
+    Map<String, String> details = skuDetails.get(type);
+    List<String> skus = skusBundle.getStringArrayList(GET_SKU_DETAILS_ITEM_LIST);
+    if (details != null && skus != null) {
+      for (String sku : skus) {
+        String json = details.get(sku);
+        if (json != null) {
+          detailsList.add(json);
+        }
+      }
+    }
+    Bundle bundle = newResponse(BILLING_RESPONSE_RESULT_OK);
+    bundle.putStringArrayList(RESPONSE_GET_SKU_DETAILS_LIST, detailsList);
+    return bundle;
+  }
+
+  @Override public Bundle getBuyIntent(int apiVersion, String packageName, String sku,
+      String type, String developerPayload) {
+    return newResponse(BILLING_RESPONSE_RESULT_ERROR);
+  }
+
+  @Override public synchronized Bundle getPurchases(int apiVersion, String packageName,
+      String type, String continuationToken) {
+    ArrayList<String> skus = new ArrayList<>();
+    ArrayList<String> purchaseDataList = new ArrayList<>();
+    ArrayList<String> signatures = new ArrayList<>();
+    for (FakePurchase purchase : purchases.values()) {
+      if (purchase.type.equals(type)) {
+        skus.add(purchase.sku);
+        purchaseDataList.add(purchase.purchaseData);
+        signatures.add(purchase.signature);
+      }
+    }
+    Bundle bundle = newResponse(BILLING_RESPONSE_RESULT_OK);
+    bundle.putStringArrayList(RESPONSE_INAPP_ITEM_LIST, skus);
+    bundle.putStringArrayList(RESPONSE_INAPP_PURCHASE_DATA_LIST, purchaseDataList);
+    bundle.putStringArrayList(RESPONSE_INAPP_SIGNATURE_LIST, signatures);
+    return bundle;
+  }
+
+  @Override public synchronized int consumePurchase(int apiVersion, String packageName,
+      String purchaseToken) {
+    return purchases.remove(purchaseToken) == null ? BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED
+        : BILLING_RESPONSE_RESULT_OK;
+  }
+
+  @Override public Bundle getBuyIntentToReplaceSkus(int apiVersion, String packageName,
+      List<String> oldSkus, String newSku, String type, String developerPayload) {
+    return newResponse(BILLING_RESPONSE_RESULT_ERROR);
+  }
+
+  @Override public void isBillingSupported(int apiVersion, String packageName, String type,
+      Callback<Integer> callback) {
+    answer(isBillingSupported(apiVersion, packageName, type), callback);
+  }
+
+  @Override public void getSkuDetails(int apiVersion, String packageName, String type,
+      Bundle skusBundle, Callback<Bundle> callback) {
+    answer(getSkuDetails(apiVersion, packageName, type, skusBundle), callback);
+  }
+
+  @Override public void getBuyIntent(int apiVersion, String packageName, String sku, String type,
+      String developerPayload, Callback<Bundle> callback) {
+    answer(getBuyIntent(apiVersion, packageName, sku, type, developerPayload), callback);
+  }
+
+  @Override public void getPurchases(int apiVersion, String packageName, String type,
+      String continuationToken, Callback<Bundle> callback) {
+    answer(getPurchases(apiVersion, packageName, type, continuationToken), callback);
+  }
+
+  @Override public void consumePurchase(int apiVersion, String packageName, String purchaseToken,
+      Callback<Integer> callback) {
+    answer(consumePurchase(apiVersion, packageName, purchaseToken), callback);
+  }
+
+  @Override public void getBuyIntentToReplaceSkus(int apiVersion, String packageName,
+      List<String> oldSkus, String newSku, String type, String developerPayload,
+      Callback<Bundle> callback) {
+    answer(getBuyIntentToReplaceSkus(apiVersion, packageName, oldSkus, newSku, type,
+        developerPayload), callback);
+  }
+
+  private <T> void answer(final T result, final Callback<T> callback) {
+    callbackExecutor.execute(() -> callback.onResult(result));
+  }
+
+  private static Bundle newResponse(int responseCode) {
+    Bundle bundle = new Bundle();
+    bundle.putInt(RESPONSE_CODE, responseCode);
+    return bundle;
+  }
+
+  private static final class FakePurchase {
+    final String type;
+    final String sku;
+    final String purchaseData;
+    final String signature;
+
+    FakePurchase(String type, String sku, String purchaseData, String signature) {
+      this.type = type;
+      this.sku = sku;
+      this.purchaseData = purchaseData;
+      this.signature = signature;
+    }
+  }
+}
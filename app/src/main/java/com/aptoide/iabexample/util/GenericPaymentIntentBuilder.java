@@ -6,14 +6,10 @@ import android.content.Intent;
 import android.net.Uri;
 import com.asf.appcoins.sdk.contractproxy.AppCoinsAddressProxyBuilder;
 import com.asf.appcoins.sdk.contractproxy.AppCoinsAddressProxySdk;
-import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
 import io.reactivex.Single;
 import io.reactivex.schedulers.Schedulers;
-import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
-import java.util.Formatter;
-import org.spongycastle.util.encoders.Hex;
 
 /**
  * This class contains the help method to build the intent to call the BDS Wallet for generic
@@ -22,6 +18,15 @@ import org.spongycastle.util.encoders.Hex;
 public class GenericPaymentIntentBuilder {
   private static final int MAIN_NETWORK_ID = 1;
   private static final int ROPSTEN_NETWORK_ID = 3;
+  // AppCoins have 18 decimal places, so this converts an amount to its smallest unit
+  private static final BigDecimal APPC_UNIT_MULTIPLIER = BigDecimal.TEN.pow(18);
+  // The builder isn't thread safe, so each thread reuses its own
+  private static final ThreadLocal<Eip681UriBuilder> URI_BUILDER =
+      new ThreadLocal<Eip681UriBuilder>() {
+        @Override protected Eip681UriBuilder initialValue() {
+          return new Eip681UriBuilder();
+        }
+      };
 
   /**
    * Method that generates the pending intent to call the wallet for a generic payment that follows
@@ -43,6 +48,21 @@ public class GenericPaymentIntentBuilder {
    */
   public static PendingIntent buildBuyIntent(Context context, String skuId, String value,
       String walletAddress, String packageName, String transferType, String payload, boolean debug) {
+    return buildBuyIntent(context, skuId, value, walletAddress, packageName, transferType, payload,
+        debug, false);
+  }
+
+  /**
+   * Same as {@link #buildBuyIntent(Context, String, String, String, String, String, String,
+   * boolean)}, but allows choosing how the transaction data is encoded.
+   *
+   * @param compactData If true the transaction data is sent using the binary layout described in
+   * {@link CompactTransactionData}, which results in much smaller calldata than the default JSON
+   * document. The receiving side must support that layout.
+   */
+  public static PendingIntent buildBuyIntent(Context context, String skuId, String value,
+      String walletAddress, String packageName, String transferType, String payload, boolean debug,
+      boolean compactData) {
     AppCoinsAddressProxySdk proxySdk = new AppCoinsAddressProxyBuilder().createAddressProxySdk();
     int networkId = debug ? ROPSTEN_NETWORK_ID : MAIN_NETWORK_ID;
 
@@ -54,21 +74,20 @@ public class GenericPaymentIntentBuilder {
     return Single.zip(getTokenContractAddress, getIabContractAddress,
         (tokenContractAddress, iabContractAddress) -> buildPaymentIntent(context, networkId, skuId,
             value, tokenContractAddress, iabContractAddress, walletAddress, packageName,
-            transferType, payload))
+            transferType, payload, compactData))
         .blockingGet();
   }
 
   private static PendingIntent buildPaymentIntent(Context context, int networkId, String skuId,
       String value, String tokenContractAddress, String iabContractAddress, String walletAddress,
-      String packageName, String paymentType, String payload) {
+      String packageName, String paymentType, String payload, boolean compactData) {
 
-    BigDecimal amount = new BigDecimal(value);
-    amount = amount.multiply(BigDecimal.TEN.pow(18));
+    BigDecimal amount = new BigDecimal(value).multiply(APPC_UNIT_MULTIPLIER);
 
     Intent intent = new Intent(Intent.ACTION_VIEW);
     Uri data = Uri.parse(
         buildUriString(tokenContractAddress, iabContractAddress, amount, walletAddress, skuId,
-            networkId, packageName, paymentType, payload));
+            networkId, packageName, paymentType, payload, compactData));
     intent.setData(data);
 
     return PendingIntent.getActivity(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
@@ -76,26 +95,10 @@ public class GenericPaymentIntentBuilder {
 
   private static String buildUriString(String tokenContractAddress, String iabContractAddress,
       BigDecimal amount, String walletAddress, String skuId, int networkId, String packageName,
-      String paymentType, String payload) {
-
-    StringBuilder stringBuilder = new StringBuilder(4);
-    try {
-      Formatter formatter = new Formatter(stringBuilder);
-      formatter.format("ethereum:%s@%d/buy?uint256=%s&address=%s&data=%s&iabContractAddress=%s",
-          tokenContractAddress, networkId, amount.toString(), walletAddress,
-          buildUriData(skuId, packageName, paymentType, payload), iabContractAddress);
-    } catch (UnsupportedEncodingException e) {
-      throw new RuntimeException("UTF-8 not supported!", e);
-    }
-
-    return stringBuilder.toString();
-  }
-
-  private static String buildUriData(String skuId, String packageName, String paymentType,
-      String payload) throws UnsupportedEncodingException {
-    return "0x" + Hex.toHexString(
-        new Gson().toJson(new TransactionData(paymentType, packageName, skuId, payload))
-            .getBytes("UTF-8"));
+      String paymentType, String payload, boolean compactData) {
+    return URI_BUILDER.get().build(tokenContractAddress, networkId, amount, walletAddress,
+        new TransactionData(paymentType, packageName, skuId, payload), compactData,
+        iabContractAddress);
   }
 
   /**
@@ -122,5 +125,21 @@ public class GenericPaymentIntentBuilder {
       this.skuId = skuId;
       this.payload = payload;
     }
+
+    public String getType() {
+      return type;
+    }
+
+    public String getDomain() {
+      return domain;
+    }
+
+    public String getSkuId() {
+      return skuId;
+    }
+
+    public String getPayload() {
+      return payload;
+    }
   }
 }
@@ -2,19 +2,17 @@ package com.aptoide.iabexample.util;
 
 import android.app.Activity;
 import android.app.PendingIntent;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender.SendIntentException;
-import android.content.ServiceConnection;
-import android.content.pm.ResolveInfo;
 import android.os.Bundle;
+import android.os.DeadObjectException;
 import android.os.Handler;
-import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.TransactionTooLargeException;
 import android.text.TextUtils;
-import android.util.Log;
-import com.aptoide.iabexample.BuildConfig;
 import java.util.ArrayList;
 import java.util.List;
 import org.json.JSONException;
@@ -75,6 +73,7 @@ public class IabHelper {
   public static final int IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE = -1009;
   public static final int IABHELPER_INVALID_CONSUMPTION = -1010;
   public static final int IABHELPER_SUBSCRIPTION_UPDATE_NOT_AVAILABLE = -1011;
+  public static final int IABHELPER_SERVICE_DIED = -1012;
   // Keys for the responses from InAppBillingService
   public static final String RESPONSE_CODE = "RESPONSE_CODE";
   public static final String RESPONSE_GET_SKU_DETAILS_LIST = "DETAILS_LIST";
@@ -90,6 +89,8 @@ public class IabHelper {
   // Item types
   public static final String ITEM_TYPE_INAPP = "inapp";
   public static final String ITEM_TYPE_SUBS = "subs";
+  // How long operations wait for the billing service to come back after it disconnects
+  public static final long RECONNECT_TIMEOUT_MILLIS = 30000;
   // Milli time
   public static final long ONE_WEEK = 604800000;
   public static final long TWO_MINUTES = 120000;
@@ -98,11 +99,27 @@ public class IabHelper {
   public static final String GET_SKU_DETAILS_ITEM_TYPE_LIST = "ITEM_TYPE_LIST";
   // Ensure atomic access to mAsyncInProgress and mDisposeAfterAsync.
   private final Object mAsyncInProgressLock = new Object();
-  // Is debug logging enabled?
-  boolean mDebugLog = false;
-  String mDebugTag = "IabHelper";
+  // Guards the setup state for the threads waiting for the service to reconnect
+  private final Object mSetupLock = new Object();
+  // Operations that can't wait on their own thread for the service to reconnect
+  private final List<PendingOperation> mPendingOperations = new ArrayList<PendingOperation>();
+  private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+  private final Runnable mReconnectTimeout = new Runnable() {
+    public void run() {
+      runPendingOperations(new IabResult(IABHELPER_REMOTE_EXCEPTION,
+          "Billing service did not reconnect in time."));
+    }
+  };
+  // Debug logging, disabled unless enableDebugLogging is called
+  final IabLogger mLogger = new IabLogger("IabHelper");
   // Is setup done?
   boolean mSetupDone = false;
+  // Is the service reconnecting after setup was done?
+  boolean mReconnecting = false;
+  // When the service disconnected, if it is reconnecting
+  long mDisconnectedAtMillis;
+  // How many times the service died, so threads waiting for it know when it did
+  int mServiceDeaths = 0;
   // Has this object been disposed of? (If so, we should ignore callbacks, etc)
   boolean mDisposed = false;
   // Do we need to dispose this object after an in-progress asynchronous operation?
@@ -121,7 +138,7 @@ public class IabHelper {
   Context mContext;
   // Connection to the service
   BillingService mService;
-  ServiceConnection mServiceConn;
+  BillingConnectionManager.Client mConnectionClient;
   // The request code used to launch purchase flow
   int mRequestCode;
   // The item type of the current purchase flow
@@ -170,7 +187,9 @@ public class IabHelper {
         + "-1007:Missing token/"
         + "-1008:Unknown error/"
         + "-1009:Subscriptions not available/"
-        + "-1010:Invalid consumption attempt").split("/");
+        + "-1010:Invalid consumption attempt/"
+        + "-1011:Subscription update not available/"
+        + "-1012:Billing service died").split("/");
 
     if (code <= IABHELPER_ERROR_BASE) {
       int index = IABHELPER_ERROR_BASE - code;
@@ -187,17 +206,20 @@ public class IabHelper {
   }
 
   /**
-   * Enables or disable debug logging through LogCat.
+   * Enables or disable debug logging through LogCat. Debug logging is never enabled in release
+   * builds.
    */
   public void enableDebugLogging(boolean enable, String tag) {
     checkNotDisposed();
-    mDebugLog = enable;
-    mDebugTag = tag;
+    mLogger.setLevel(enable ? IabLogger.DEBUG : IabLogger.WARN);
+    mLogger.setTag(tag);
+    BillingConnectionManager.getInstance(mContext).enableDebugLogging(enable);
   }
 
   public void enableDebugLogging(boolean enable) {
     checkNotDisposed();
-    mDebugLog = enable;
+    mLogger.setLevel(enable ? IabLogger.DEBUG : IabLogger.WARN);
+    BillingConnectionManager.getInstance(mContext).enableDebugLogging(enable);
   }
 
   /**
@@ -216,14 +238,21 @@ public class IabHelper {
       }
     }
     logDebug("Disposing.");
-    mSetupDone = false;
-    if (mServiceConn != null) {
-      logDebug("Unbinding from service.");
-      if (mContext != null) mContext.unbindService(mServiceConn);
+    synchronized (mSetupLock) {
+      mSetupDone = false;
+      mReconnecting = false;
+      mSetupLock.notifyAll();
+    }
+    mMainHandler.removeCallbacks(mReconnectTimeout);
+    if (mConnectionClient != null) {
+      logDebug("Detaching from service.");
+      if (mContext != null) {
+        BillingConnectionManager.getInstance(mContext).detach(mConnectionClient);
+      }
     }
     mDisposed = true;
     mContext = null;
-    mServiceConn = null;
+    mConnectionClient = null;
     mService = null;
     mPurchaseListener = null;
   }
@@ -298,12 +327,29 @@ public class IabHelper {
       int requestCode, OnIabPurchaseFinishedListener listener, String extraData)
       throws IabAsyncInProgressException {
     checkNotDisposed();
-    checkSetupDone("launchPurchaseFlow");
+    checkSetupStarted("launchPurchaseFlow");
     flagStartAsync("launchPurchaseFlow");
+    runWhenSetUp(new PendingOperation() {
+      public void run() {
+        launchPurchaseFlowNow(act, sku, itemType, oldSkus, requestCode, listener, extraData);
+      }
+
+      public void fail(IabResult result) {
+        flagEndAsync();
+        if (listener != null) listener.onIabPurchaseFinished(result, null);
+      }
+    });
+  }
+
+  private void launchPurchaseFlowNow(Activity act, String sku, String itemType,
+      List<String> oldSkus, int requestCode, OnIabPurchaseFinishedListener listener,
+      String extraData) {
     IabResult result;
 
     try {
-      logDebug("Constructing buy intent for " + sku + ", item type: " + itemType);
+      if (mLogger.isDebugEnabled()) {
+        logDebug("Constructing buy intent for " + sku + ", item type: " + itemType);
+      }
       Bundle buyIntentBundle;
       if (oldSkus == null || oldSkus.isEmpty()) {
         // Purchasing a new item or subscription re-signup
@@ -332,7 +378,9 @@ public class IabHelper {
       }
 
       PendingIntent pendingIntent = buyIntentBundle.getParcelable(RESPONSE_BUY_INTENT);
-      logDebug("Launching buy intent for " + sku + ". Request code: " + requestCode);
+      if (mLogger.isDebugEnabled()) {
+        logDebug("Launching buy intent for " + sku + ". Request code: " + requestCode);
+      }
       mRequestCode = requestCode;
       mPurchaseListener = listener;
       mPurchasingItemType = itemType;
@@ -350,7 +398,7 @@ public class IabHelper {
       e.printStackTrace();
       flagEndAsync();
 
-      result = new IabResult(IABHELPER_REMOTE_EXCEPTION,
+      result = new IabResult(getRemoteExceptionResponse(e),
           "Remote exception while starting purchase flow");
       if (listener != null) listener.onIabPurchaseFinished(result, null);
     }
@@ -363,8 +411,13 @@ public class IabHelper {
 
   /**
    * Starts the setup process. This will start up the setup process asynchronously.
-   * You will be notified through the listener when the setup process is complete.
-   * This method is safe to call from a UI thread.
+   * You will be notified through the listener, on the main thread, when the setup process is
+   * complete. The billing support checks run in the background, so this method is safe to call
+   * from a UI thread. The connection to the billing service is shared by all the instances in the
+   * process, see {@link BillingConnectionManager}, so only the first one to be set up binds the
+   * service and checks it. If the service disconnects after setup, it is reconnected
+   * automatically and the listener isn't called again: operations issued in the meantime wait
+   * for it, for up to {@link #RECONNECT_TIMEOUT_MILLIS}, and then carry on.
    *
    * @param listener The listener to notify when the setup process is complete.
    */
@@ -375,96 +428,75 @@ public class IabHelper {
       (new IllegalStateException("IAB helper is already set up.")).printStackTrace();
       return;
     }
-    // Connection to IAB service
+    // Connection to IAB service, shared with the other instances
     logDebug("Starting in-app billing setup.");
-    mServiceConn = new ServiceConnection() {
-      @Override public void onServiceConnected(ComponentName name, IBinder service) {
+    mConnectionClient = new BillingConnectionManager.Client() {
+      @Override public void onSetupFinished(BillingService service,
+          BillingConnectionManager.SetupResult result) {
         if (mDisposed) return;
         logDebug("Billing service connected.");
-        mService = BillingServiceFactory.create(service);
-        String packageName = mContext.getPackageName();
-        try {
-          logDebug("Checking for in-app billing 3 support.");
-
-          // check for in-app billing v3 support
-          int response = mService.isBillingSupported(3, packageName, ITEM_TYPE_INAPP);
-          if (response != BILLING_RESPONSE_RESULT_OK) {
-            if (listener != null) {
-              listener.onIabSetupFinished(
-                  new IabResult(response, "Error checking for billing v3 support."));
-            }
-
-            // if in-app purchases aren't supported, neither are subscriptions
-            mSubscriptionsSupported = false;
-            mSubscriptionUpdateSupported = false;
-            return;
-          } else {
-            logDebug("In-app billing version 3 supported for " + packageName);
-          }
-
-          // Check for v5 subscriptions support. This is needed for
-          // getBuyIntentToReplaceSku which allows for subscription update
-          response = mService.isBillingSupported(5, packageName, ITEM_TYPE_SUBS);
-          if (response == BILLING_RESPONSE_RESULT_OK) {
-            logDebug("Subscription re-signup AVAILABLE.");
-            mSubscriptionUpdateSupported = true;
-          } else {
-            logDebug("Subscription re-signup not available.");
-            mSubscriptionUpdateSupported = false;
-          }
-
-          if (mSubscriptionUpdateSupported) {
-            mSubscriptionsSupported = true;
-          } else {
-            // check for v3 subscriptions support
-            response = mService.isBillingSupported(3, packageName, ITEM_TYPE_SUBS);
-            if (response == BILLING_RESPONSE_RESULT_OK) {
-              logDebug("Subscriptions AVAILABLE.");
-              mSubscriptionsSupported = true;
-            } else {
-              logDebug("Subscriptions NOT AVAILABLE. Response: " + response);
-              mSubscriptionsSupported = false;
-              mSubscriptionUpdateSupported = false;
-            }
-          }
-
-          mSetupDone = true;
-        } catch (RemoteException e) {
-          if (listener != null) {
-            listener.onIabSetupFinished(new IabResult(IABHELPER_REMOTE_EXCEPTION,
-                "RemoteException while setting up in-app billing."));
-          }
-          e.printStackTrace();
-          return;
+        boolean reconnected;
+        synchronized (mSetupLock) {
+          reconnected = mReconnecting;
+          mService = service;
+          mSubscriptionsSupported = result.subscriptionsSupported;
+          mSubscriptionUpdateSupported = result.subscriptionUpdateSupported;
+          mSetupDone = result.result.isSuccess();
+          mReconnecting = false;
+          mSetupLock.notifyAll();
         }
-
-        if (listener != null) {
-          listener.onIabSetupFinished(
-              new IabResult(BILLING_RESPONSE_RESULT_OK, "Setup successful."));
+        if (reconnected) {
+          // The operations issued in the meantime carry on, the app doesn't set up again
+          mMainHandler.removeCallbacks(mReconnectTimeout);
+          runPendingOperations(result.result);
+        } else if (listener != null) {
+          listener.onIabSetupFinished(result.result);
         }
       }
 
-      @Override public void onServiceDisconnected(ComponentName name) {
+      @Override public void onServiceDisconnected() {
         logDebug("Billing service disconnected.");
-        mService = null;
-        mSetupDone = false;
+        synchronized (mSetupLock) {
+          if (mSetupDone) {
+            mReconnecting = true;
+            mDisconnectedAtMillis = SystemClock.elapsedRealtime();
+            mMainHandler.postDelayed(mReconnectTimeout, RECONNECT_TIMEOUT_MILLIS);
+          }
+          mService = null;
+          mSetupDone = false;
+        }
       }
-    };
 
-    Intent serviceIntent = new Intent(BuildConfig.IAB_BIND_ACTION);
-    serviceIntent.setPackage(BuildConfig.IAB_BIND_PACKAGE);
-    List<ResolveInfo> intentServices = mContext.getPackageManager()
-        .queryIntentServices(serviceIntent, 0);
-    if (intentServices != null && !intentServices.isEmpty()) {
-      // service available to handle that Intent
-      mContext.bindService(serviceIntent, mServiceConn, Context.BIND_AUTO_CREATE);
-    } else {
-      // no service available to handle that Intent
-      if (listener != null) {
-        listener.onIabSetupFinished(new IabResult(BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE,
-            "Billing service unavailable on device."));
+      @Override public void onServiceDied() {
+        logWarn("Billing service died.");
+        final List<PendingOperation> failed;
+        synchronized (mSetupLock) {
+          if (mSetupDone) {
+            mReconnecting = true;
+            mDisconnectedAtMillis = SystemClock.elapsedRealtime();
+            mMainHandler.postDelayed(mReconnectTimeout, RECONNECT_TIMEOUT_MILLIS);
+          }
+          // mService is kept so that the calls in flight fail right away with a
+          // DeadObjectException rather than on a null service
+          mSetupDone = false;
+          mServiceDeaths++;
+          mSetupLock.notifyAll();
+          failed = new ArrayList<PendingOperation>(mPendingOperations);
+          mPendingOperations.clear();
+        }
+        if (!failed.isEmpty()) {
+          final IabResult result = new IabResult(IABHELPER_SERVICE_DIED, "Billing service died.");
+          mMainHandler.post(new Runnable() {
+            public void run() {
+              for (PendingOperation operation : failed) {
+                operation.fail(result);
+              }
+            }
+          });
+        }
       }
-    }
+    };
+    BillingConnectionManager.getInstance(mContext).attach(mConnectionClient);
   }
 
   public Inventory queryInventory() throws IabException {
@@ -490,7 +522,7 @@ public class IabHelper {
   public Inventory queryInventory(boolean querySkuDetails, List<String> moreItemSkus,
       List<String> moreSubsSkus) throws IabException {
     checkNotDisposed();
-    checkSetupDone("queryInventory");
+    awaitSetup("queryInventory");
     try {
       Inventory inv = new Inventory();
       int r = queryPurchases(inv, ITEM_TYPE_INAPP);
@@ -523,7 +555,7 @@ public class IabHelper {
 
       return inv;
     } catch (RemoteException e) {
-      throw new IabException(IABHELPER_REMOTE_EXCEPTION,
+      throw new IabException(getRemoteExceptionResponse(e),
           "Remote exception while refreshing inventory.", e);
     } catch (JSONException e) {
       throw new IabException(IABHELPER_BAD_RESPONSE,
@@ -547,7 +579,7 @@ public class IabHelper {
       throws IabAsyncInProgressException {
     final Handler handler = new Handler();
     checkNotDisposed();
-    checkSetupDone("queryInventory");
+    checkSetupStarted("queryInventory");
     flagStartAsync("refresh inventory");
     (new Thread(new Runnable() {
       public void run() {
@@ -592,36 +624,47 @@ public class IabHelper {
    */
   void consume(Purchase itemInfo) throws IabException {
     checkNotDisposed();
-    checkSetupDone("consume");
-
-    if (!itemInfo.mItemType.equals(ITEM_TYPE_INAPP) && !itemInfo.mItemType.equals(ITEM_TYPE_SUBS)) {
-      throw new IabException(IABHELPER_INVALID_CONSUMPTION,
-          "Items of type '" + itemInfo.mItemType + "' can't be consumed.");
-    }
+    awaitSetup("consume");
+    checkConsumable(itemInfo);
 
     try {
       String token = itemInfo.getToken();
       String sku = itemInfo.getSku();
-      if (token == null || token.equals("")) {
-        logError("Can't consume " + sku + ". No token.");
-        throw new IabException(IABHELPER_MISSING_TOKEN,
-            "PurchaseInfo is missing token for sku: " + sku + " " + itemInfo);
+      if (mLogger.isDebugEnabled()) {
+        logDebug("Consuming sku: " + sku + ", token: " + token);
       }
-
-      logDebug("Consuming sku: " + sku + ", token: " + token);
       int response = mService.consumePurchase(3, mContext.getPackageName(), token);
-      if (response == BILLING_RESPONSE_RESULT_OK) {
-        logDebug("Successfully consumed sku: " + sku);
-      } else {
-        logDebug("Error consuming consuming sku " + sku + ". " + getResponseDesc(response));
-        throw new IabException(response, "Error consuming sku " + sku);
-      }
+      checkConsumeResponse(sku, response);
     } catch (RemoteException e) {
-      throw new IabException(IABHELPER_REMOTE_EXCEPTION,
+      throw new IabException(getRemoteExceptionResponse(e),
           "Remote exception while consuming. PurchaseInfo: " + itemInfo, e);
     }
   }
 
+  private void checkConsumable(Purchase itemInfo) throws IabException {
+    if (!itemInfo.mItemType.equals(ITEM_TYPE_INAPP) && !itemInfo.mItemType.equals(ITEM_TYPE_SUBS)) {
+      throw new IabException(IABHELPER_INVALID_CONSUMPTION,
+          "Items of type '" + itemInfo.mItemType + "' can't be consumed.");
+    }
+    String token = itemInfo.getToken();
+    if (token == null || token.equals("")) {
+      logError("Can't consume " + itemInfo.getSku() + ". No token.");
+      throw new IabException(IABHELPER_MISSING_TOKEN,
+          "PurchaseInfo is missing token for sku: " + itemInfo.getSku() + " " + itemInfo);
+    }
+  }
+
+  private void checkConsumeResponse(String sku, int response) throws IabException {
+    if (response == BILLING_RESPONSE_RESULT_OK) {
+      logDebug("Successfully consumed sku: ", sku);
+    } else {
+      if (mLogger.isDebugEnabled()) {
+        logDebug("Error consuming consuming sku " + sku + ". " + getResponseDesc(response));
+      }
+      throw new IabException(response, "Error consuming sku " + sku);
+    }
+  }
+
   /**
    * Asynchronous wrapper to item consumption. Works like {@link #consume}, but
    * performs the consumption in the background and notifies completion through
@@ -633,7 +676,7 @@ public class IabHelper {
   public void consumeAsync(Purchase purchase, OnConsumeFinishedListener listener)
       throws IabAsyncInProgressException {
     checkNotDisposed();
-    checkSetupDone("consume");
+    checkSetupStarted("consume");
     List<Purchase> purchases = new ArrayList<Purchase>();
     purchases.add(purchase);
     consumeAsyncInternal(purchases, listener, null);
@@ -648,7 +691,7 @@ public class IabHelper {
   public void consumeAsync(List<Purchase> purchases, OnConsumeFinishedListener listener)
       throws IabAsyncInProgressException {
     checkNotDisposed();
-    checkSetupDone("consume");
+    checkSetupStarted("consume");
     consumeAsyncInternal(purchases, listener, null);
   }
 
@@ -671,7 +714,7 @@ public class IabHelper {
     if (requestCode != mRequestCode) return false;
 
     checkNotDisposed();
-    checkSetupDone("handleActivityResult");
+    checkSetupStarted("handleActivityResult");
 
     // end of async purchase operation that started on launchPurchaseFlow
     flagEndAsync();
@@ -690,15 +733,19 @@ public class IabHelper {
 
     if (resultCode == Activity.RESULT_OK && isSuccess(responseCode)) {
       logDebug("Successful resultcode from purchase activity.");
-      logDebug("Purchase data: " + purchaseData);
-      logDebug("Data signature: " + dataSignature);
-      logDebug("Extras: " + data.getExtras());
-      logDebug("Expected item type: " + mPurchasingItemType);
+      logDebug("Purchase data: ", purchaseData);
+      logDebug("Data signature: ", dataSignature);
+      // Only unparcel the extras when they are actually logged
+      if (mLogger.isDebugEnabled()) {
+        logDebug("Extras: ", data.getExtras());
+      }
+      logDebug("Expected item type: ", mPurchasingItemType);
 
       if (purchaseData == null || dataSignature == null) {
         logError("BUG: either purchaseData or dataSignature is null.");
-        logDebug("Extras: " + data.getExtras()
-            .toString());
+        if (mLogger.isDebugEnabled()) {
+          logDebug("Extras: ", data.getExtras());
+        }
         result = new IabResult(IABHELPER_UNKNOWN_ERROR,
             "IAB returned null purchaseData or dataSignature");
         if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, null);
@@ -737,14 +784,18 @@ public class IabHelper {
       }
     } else if (resultCode == Activity.RESULT_OK) {
       // result code was OK, but in-app billing response was not OK.
-      logDebug("Result code was OK but in-app billing response was not OK: " + getResponseDesc(
-          responseCode));
+      if (mLogger.isDebugEnabled()) {
+        logDebug("Result code was OK but in-app billing response was not OK: ",
+            getResponseDesc(responseCode));
+      }
       if (mPurchaseListener != null) {
         result = new IabResult(responseCode, "Problem purchashing item.");
         mPurchaseListener.onIabPurchaseFinished(result, null);
       }
     } else if (resultCode == Activity.RESULT_CANCELED) {
-      logDebug("Purchase canceled - Response: " + getResponseDesc(responseCode));
+      if (mLogger.isDebugEnabled()) {
+        logDebug("Purchase canceled - Response: ", getResponseDesc(responseCode));
+      }
       result = new IabResult(IABHELPER_USER_CANCELLED, "User canceled.");
       if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, null);
     } else {
@@ -765,6 +816,87 @@ public class IabHelper {
     }
   }
 
+  // Checks that setup was done, or that the service is reconnecting, for operations that will
+  // wait for it; if not, throws an exception.
+  void checkSetupStarted(String operation) {
+    if (!mReconnecting) {
+      checkSetupDone(operation);
+    }
+  }
+
+  // Checks that setup was done, waiting for the service if it is reconnecting. Blocks, so it must
+  // not be called from the UI thread.
+  void awaitSetup(String operation) throws IabException {
+    synchronized (mSetupLock) {
+      if (!mReconnecting) {
+        checkSetupDone(operation);
+        return;
+      }
+      logDebug("Waiting for the billing service to reconnect for operation: ", operation);
+      int deaths = mServiceDeaths;
+      long deadline = mDisconnectedAtMillis + RECONNECT_TIMEOUT_MILLIS;
+      long remaining = deadline - SystemClock.elapsedRealtime();
+      while (mReconnecting && remaining > 0 && deaths == mServiceDeaths) {
+        try {
+          mSetupLock.wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+        remaining = deadline - SystemClock.elapsedRealtime();
+      }
+      if (deaths != mServiceDeaths) {
+        throw new IabException(IABHELPER_SERVICE_DIED,
+            "Billing service died. Can't perform operation: " + operation);
+      }
+      if (!mSetupDone) {
+        throw new IabException(IABHELPER_REMOTE_EXCEPTION,
+            "Billing service disconnected. Can't perform operation: " + operation);
+      }
+    }
+  }
+
+  // A call to a service whose process died fails with a DeadObjectException
+  private static int getRemoteExceptionResponse(RemoteException e) {
+    return e instanceof DeadObjectException ? IABHELPER_SERVICE_DIED : IABHELPER_REMOTE_EXCEPTION;
+  }
+
+  // Runs the operation now, or once the service reconnects if it is reconnecting. Fails it if the
+  // service doesn't come back in time.
+  private void runWhenSetUp(PendingOperation operation) {
+    boolean reconnecting;
+    synchronized (mSetupLock) {
+      reconnecting = mReconnecting;
+      if (reconnecting
+          && SystemClock.elapsedRealtime() < mDisconnectedAtMillis + RECONNECT_TIMEOUT_MILLIS) {
+        logDebug("Billing service reconnecting, operation queued.");
+        mPendingOperations.add(operation);
+        return;
+      }
+    }
+    if (reconnecting) {
+      operation.fail(new IabResult(IABHELPER_REMOTE_EXCEPTION, "Billing service disconnected."));
+    } else {
+      operation.run();
+    }
+  }
+
+  // Runs the queued operations if the service reconnected, or fails them with the given result.
+  void runPendingOperations(IabResult result) {
+    List<PendingOperation> operations;
+    synchronized (mSetupLock) {
+      operations = new ArrayList<PendingOperation>(mPendingOperations);
+      mPendingOperations.clear();
+    }
+    for (PendingOperation operation : operations) {
+      if (result.isSuccess() && mSetupDone) {
+        operation.run();
+      } else {
+        operation.fail(result);
+      }
+    }
+  }
+
   // Workaround to bug where sometimes response codes come as Long instead of Integer
   int getResponseCodeFromBundle(Bundle b) {
     Object o = b.get(RESPONSE_CODE);
@@ -815,13 +947,13 @@ public class IabHelper {
       }
       mAsyncOperation = operation;
       mAsyncInProgress = true;
-      logDebug("Starting async operation: " + operation);
+      logDebug("Starting async operation: ", operation);
     }
   }
 
   void flagEndAsync() {
     synchronized (mAsyncInProgressLock) {
-      logDebug("Ending async operation: " + mAsyncOperation);
+      logDebug("Ending async operation: ", mAsyncOperation);
       mAsyncOperation = "";
       mAsyncInProgress = false;
       if (mDisposeAfterAsync) {
@@ -837,20 +969,22 @@ public class IabHelper {
 
   int queryPurchases(Inventory inv, String itemType) throws JSONException, RemoteException {
     // Query purchases
-    logDebug("Querying owned items, item type: " + itemType);
-    logDebug("Package name: " + mContext.getPackageName());
+    logDebug("Querying owned items, item type: ", itemType);
+    logDebug("Package name: ", mContext.getPackageName());
     boolean verificationFailed = false;
     String continueToken = null;
 
     do {
-      logDebug("Calling getPurchases with continuation token: " + continueToken);
+      logDebug("Calling getPurchases with continuation token: ", continueToken);
       Bundle ownedItems =
           mService.getPurchases(3, mContext.getPackageName(), itemType, continueToken);
 
       int response = getResponseCodeFromBundle(ownedItems);
-      logDebug("Owned items response: " + response);
+      logDebug("Owned items response: ", response);
       if (response != BILLING_RESPONSE_RESULT_OK) {
-        logDebug("getPurchases() failed: " + getResponseDesc(response));
+        if (mLogger.isDebugEnabled()) {
+          logDebug("getPurchases() failed: ", getResponseDesc(response));
+        }
         return response;
       }
       if (!ownedItems.containsKey(RESPONSE_INAPP_ITEM_LIST) || !ownedItems.containsKey(
@@ -873,26 +1007,26 @@ public class IabHelper {
         String sku = ownedSkus.get(i);
         String id = idsList.get(i);
         if (Security.verifyPurchase(mSignatureBase64, purchaseData, signature)) {
-          logDebug("Sku is owned: " + sku);
+          logDebug("Sku is owned: ", sku);
           Purchase purchase = new Purchase(id, itemType, purchaseData, signature);
 
           if (TextUtils.isEmpty(purchase.getToken())) {
             logWarn("BUG: empty/null token!");
-            logDebug("Purchase data: " + purchaseData);
+            logDebug("Purchase data: ", purchaseData);
           }
 
           // Record ownership and token
           inv.addPurchase(purchase);
         } else {
           logWarn("Purchase signature verification **FAILED**. Not adding item.");
-          logDebug("   Purchase data: " + purchaseData);
-          logDebug("   Signature: " + signature);
+          logDebug("   Purchase data: ", purchaseData);
+          logDebug("   Signature: ", signature);
           verificationFailed = true;
         }
       }
 
       continueToken = ownedItems.getString(INAPP_CONTINUATION_TOKEN);
-      logDebug("Continuation token: " + continueToken);
+      logDebug("Continuation token: ", continueToken);
     } while (!TextUtils.isEmpty(continueToken));
 
     return verificationFailed ? IABHELPER_VERIFICATION_FAILED : BILLING_RESPONSE_RESULT_OK;
@@ -916,35 +1050,53 @@ public class IabHelper {
       return BILLING_RESPONSE_RESULT_OK;
     }
 
-    // Split the sku list in blocks of no more than 20 elements.
-    ArrayList<ArrayList<String>> packs = new ArrayList<ArrayList<String>>();
-    ArrayList<String> tempList;
-    int n = skuList.size() / 20;
-    int mod = skuList.size() % 20;
-    for (int i = 0; i < n; i++) {
-      tempList = new ArrayList<String>();
-      for (String s : skuList.subList(i * 20, i * 20 + 20)) {
-        tempList.add(s);
-      }
-      packs.add(tempList);
-    }
-    if (mod != 0) {
-      tempList = new ArrayList<String>();
-      for (String s : skuList.subList(n * 20, n * 20 + mod)) {
-        tempList.add(s);
-      }
-      packs.add(tempList);
-    }
-
-    for (ArrayList<String> skuPartList : packs) {
+    // Split the sku list in packs, as big as the wallet answers them quickly and as the binder
+    // transaction limit allows.
+    SkuDetailsPackSizer packSizer = BillingConnectionManager.getInstance(mContext)
+        .getSkuDetailsPackSizer();
+    int next = 0;
+    boolean retrying = false;
+    // Lowered for this query only after a pack failed for a reason that may not be its size
+    int maxPackSize = Integer.MAX_VALUE;
+    while (next < skuList.size()) {
+      int packSize =
+          Math.min(Math.min(packSizer.getPackSize(), maxPackSize), skuList.size() - next);
+      ArrayList<String> skuPartList = new ArrayList<String>(skuList.subList(next, next + packSize));
       Bundle querySkus = new Bundle();
       querySkus.putStringArrayList(GET_SKU_DETAILS_ITEM_LIST, skuPartList);
-      Bundle skuDetails = mService.getSkuDetails(3, mContext.getPackageName(), itemType, querySkus);
+      long start = SystemClock.elapsedRealtime();
+      Bundle skuDetails;
+      try {
+        skuDetails = mService.getSkuDetails(3, mContext.getPackageName(), itemType, querySkus);
+      } catch (TransactionTooLargeException e) {
+        if (packSize == 1) {
+          throw e;
+        }
+        packSizer.onTransactionTooLarge(packSize);
+        logDebug("SKU details too large, retrying in packs of ", packSizer.getPackSize());
+        continue;
+      } catch (RemoteException e) {
+        // Depending on the Android version, a reply too large for the binder buffer can also fail
+        // with a DeadObjectException or a plain RemoteException, so a failed pack is retried once
+        // with a smaller size before the wallet is blamed for it. The wallet may as well have
+        // crashed or be restarting, so the tuned size is left alone.
+        if (packSize == 1 || retrying) {
+          throw e;
+        }
+        retrying = true;
+        maxPackSize = Math.max(1, packSize / 2);
+        logDebug("getSkuDetails() failed, retrying in packs of ", maxPackSize);
+        continue;
+      }
+      retrying = false;
+      long latencyMillis = SystemClock.elapsedRealtime() - start;
 
       if (!skuDetails.containsKey(RESPONSE_GET_SKU_DETAILS_LIST)) {
         int response = getResponseCodeFromBundle(skuDetails);
         if (response != BILLING_RESPONSE_RESULT_OK) {
-          logDebug("getSkuDetails() failed: " + getResponseDesc(response));
+          if (mLogger.isDebugEnabled()) {
+            logDebug("getSkuDetails() failed: ", getResponseDesc(response));
+          }
           return response;
         } else {
           logError("getSkuDetails() returned a bundle with neither an error nor a detail list.");
@@ -954,63 +1106,93 @@ public class IabHelper {
 
       ArrayList<String> responseList = skuDetails.getStringArrayList(RESPONSE_GET_SKU_DETAILS_LIST);
 
+      long payloadChars = 0;
       for (String thisResponse : responseList) {
+        payloadChars += thisResponse.length();
         SkuDetails d = new SkuDetails(itemType, thisResponse);
-        logDebug("Got sku details: " + d);
+        logDebug("Got sku details: ", d);
         inv.addSkuDetails(d);
       }
+      // Strings are written to a parcel as UTF-16. This leaves out the rest of the reply, such as
+      // the bundle keys and the parcel's own headers, so it is only an estimate of its size.
+      packSizer.onPackAnswered(packSize, responseList.size(), latencyMillis, payloadChars * 2);
+      next += packSize;
     }
 
     return BILLING_RESPONSE_RESULT_OK;
   }
 
+  // Consumes the purchases one after the other through the asynchronous service, so no thread is
+  // held while the wallet answers, and waits for the service without blocking if it is
+  // reconnecting.
   void consumeAsyncInternal(final List<Purchase> purchases,
       final OnConsumeFinishedListener singleListener,
       final OnConsumeMultiFinishedListener multiListener) throws IabAsyncInProgressException {
     final Handler handler = new Handler();
     flagStartAsync("consume");
-    (new Thread(new Runnable() {
+    runWhenSetUp(new PendingOperation() {
       public void run() {
-        final List<IabResult> results = new ArrayList<IabResult>();
-        for (Purchase purchase : purchases) {
-          try {
-            consume(purchase);
-            results.add(new IabResult(BILLING_RESPONSE_RESULT_OK,
-                "Successful consume of sku " + purchase.getSku()));
-          } catch (IabException ex) {
-            results.add(ex.getResult());
-          }
+        new AsyncConsumption(purchases, getAsyncService(), handler, singleListener,
+            multiListener).consumeNext();
+      }
+
+      public void fail(IabResult result) {
+        List<IabResult> results = new ArrayList<IabResult>();
+        for (int i = 0; i < purchases.size(); i++) {
+          results.add(result);
         }
+        finishConsumption(purchases, results, handler, singleListener, multiListener);
+      }
+    });
+  }
 
-        flagEndAsync();
-        if (!mDisposed && singleListener != null) {
-          handler.post(new Runnable() {
-            public void run() {
-              singleListener.onConsumeFinished(purchases.get(0), results.get(0));
-            }
-          });
+  // Services that can answer asynchronously on their own are called directly, the others through
+  // the shared pool of the adapter
+  private AsyncBillingService getAsyncService() {
+    BillingService service = mService;
+    return service instanceof AsyncBillingService ? (AsyncBillingService) service
+        : new BillingServiceAsyncAdapter(service);
+  }
+
+  void finishConsumption(final List<Purchase> purchases, final List<IabResult> results,
+      Handler handler, final OnConsumeFinishedListener singleListener,
+      final OnConsumeMultiFinishedListener multiListener) {
+    flagEndAsync();
+    if (!mDisposed && singleListener != null) {
+      handler.post(new Runnable() {
+        public void run() {
+          singleListener.onConsumeFinished(purchases.get(0), results.get(0));
         }
-        if (!mDisposed && multiListener != null) {
-          handler.post(new Runnable() {
-            public void run() {
-              multiListener.onConsumeMultiFinished(purchases, results);
-            }
-          });
+      });
+    }
+    if (!mDisposed && multiListener != null) {
+      handler.post(new Runnable() {
+        public void run() {
+          multiListener.onConsumeMultiFinished(purchases, results);
         }
-      }
-    })).start();
+      });
+    }
   }
 
   void logDebug(String msg) {
-    if (mDebugLog) Log.d(mDebugTag, msg);
+    mLogger.debug(msg);
+  }
+
+  // The message is only concatenated if debug logging is enabled
+  void logDebug(String prefix, Object value) {
+    mLogger.debug(prefix, value);
+  }
+
+  void logDebug(String prefix, int value) {
+    mLogger.debug(prefix, value);
   }
 
   void logError(String msg) {
-    Log.e(mDebugTag, "In-app billing error: " + msg);
+    mLogger.error(msg);
   }
 
   void logWarn(String msg) {
-    Log.w(mDebugTag, "In-app billing warning: " + msg);
+    mLogger.warn(msg);
   }
 
   /**
@@ -1091,4 +1273,70 @@ public class IabHelper {
       super(message);
     }
   }
+
+  /**
+   * Operation issued while the service was reconnecting, run once it is back.
+   */
+  private interface PendingOperation {
+    void run();
+
+    void fail(IabResult result);
+  }
+
+  private final class AsyncConsumption implements AsyncBillingService.Callback<Integer> {
+    private final List<Purchase> purchases;
+    private final List<IabResult> results;
+    private final AsyncBillingService service;
+    private final Handler handler;
+    private final OnConsumeFinishedListener singleListener;
+    private final OnConsumeMultiFinishedListener multiListener;
+
+    AsyncConsumption(List<Purchase> purchases, AsyncBillingService service, Handler handler,
+        OnConsumeFinishedListener singleListener, OnConsumeMultiFinishedListener multiListener) {
+      this.purchases = purchases;
+      this.results = new ArrayList<IabResult>(purchases.size());
+      this.service = service;
+      this.handler = handler;
+      this.singleListener = singleListener;
+      this.multiListener = multiListener;
+    }
+
+    void consumeNext() {
+      while (results.size() < purchases.size()) {
+        Purchase purchase = purchases.get(results.size());
+        try {
+          checkConsumable(purchase);
+        } catch (IabException ex) {
+          results.add(ex.getResult());
+          continue;
+        }
+        if (mLogger.isDebugEnabled()) {
+          logDebug("Consuming sku: " + purchase.getSku() + ", token: " + purchase.getToken());
+        }
+        // Carries on from the callback
+        service.consumePurchase(3, mContext.getPackageName(), purchase.getToken(), this);
+        return;
+      }
+      finishConsumption(purchases, results, handler, singleListener, multiListener);
+    }
+
+    @Override public void onResult(Integer response) {
+      Purchase purchase = purchases.get(results.size());
+      try {
+        checkConsumeResponse(purchase.getSku(), response);
+        results.add(new IabResult(BILLING_RESPONSE_RESULT_OK,
+            "Successful consume of sku " + purchase.getSku()));
+      } catch (IabException ex) {
+        results.add(ex.getResult());
+      }
+      consumeNext();
+    }
+
+    @Override public void onError(RemoteException error) {
+      Purchase purchase = purchases.get(results.size());
+      results.add(new IabResult(getRemoteExceptionResponse(error),
+          "Remote exception while consuming. PurchaseInfo: " + purchase));
+      consumeNext();
+    }
+  }
 }
@@ -0,0 +1,73 @@
+package com.aptoide.iabexample.util;
+
+import android.util.Log;
+import com.aptoide.iabexample.BuildConfig;
+
+/**
+ * Logger used by the in-app billing helpers.
+ *
+ * Messages are only built when they are actually going to be written. Callers pass either a
+ * constant message or a prefix and a single value that are concatenated lazily, and check
+ * {@link #isDebugEnabled} before building anything more elaborate, so that no string or lambda is
+ * allocated when the message is dropped. Debug messages can be turned on and off at runtime with
+ * {@link #setLevel}, and are compiled out of release builds altogether through
+ * {@link BuildConfig#IAB_DEBUG_LOGS}.
+ */
+final class IabLogger {
+  /** Logs debug, warning and error messages. */
+  static final int DEBUG = Log.DEBUG;
+  /** Logs warning and error messages. */
+  static final int WARN = Log.WARN;
+  /** Logs only error messages. */
+  static final int ERROR = Log.ERROR;
+  /** Logs nothing. */
+  static final int NONE = Integer.MAX_VALUE;
+
+  private volatile String tag;
+  private volatile int level;
+
+  IabLogger(String tag) {
+    this.tag = tag;
+    this.level = WARN;
+  }
+
+  void setTag(String tag) {
+    this.tag = tag;
+  }
+
+  /**
+   * @param level The minimum level of the messages to log, one of {@link #DEBUG}, {@link #WARN},
+   * {@link #ERROR} or {@link #NONE}.
+   */
+  void setLevel(int level) {
+    this.level = level;
+  }
+
+  /**
+   * Call sites that need more than one value to build a message can check this before building
+   * it. The check is a compile time constant false in release builds.
+   */
+  boolean isDebugEnabled() {
+    return BuildConfig.IAB_DEBUG_LOGS && level <= DEBUG;
+  }
+
+  void debug(String message) {
+    if (isDebugEnabled()) Log.d(tag, message);
+  }
+
+  void debug(String prefix, Object value) {
+    if (isDebugEnabled()) Log.d(tag, prefix + value);
+  }
+
+  void debug(String prefix, int value) {
+    if (isDebugEnabled()) Log.d(tag, prefix + value);
+  }
+
+  void warn(String message) {
+    if (level <= WARN) Log.w(tag, "In-app billing warning: " + message);
+  }
+
+  void error(String message) {
+    if (level <= ERROR) Log.e(tag, "In-app billing error: " + message);
+  }
+}
@@ -0,0 +1,138 @@
+package com.aptoide.iabexample.util;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import java.util.List;
+
+import static com.aptoide.iabexample.util.IabHelper.BILLING_RESPONSE_RESULT_OK;
+import static com.aptoide.iabexample.util.IabHelper.RESPONSE_CODE;
+
+/**
+ * {@link BillingService} that records the latency, the remote errors and the response code of
+ * every call it passes on, see {@link BillingServiceMetrics}.
+ *
+ * The latency covers the call to the wrapped service only, so it tells how long the wallet takes
+ * to answer apart from what the app does with the answer.
+ */
+class InstrumentedBillingService implements BillingService {
+  private final BillingService service;
+  private final BillingServiceMetrics metrics;
+
+  InstrumentedBillingService(BillingService service, BillingServiceMetrics metrics) {
+    this.service = service;
+    this.metrics = metrics;
+  }
+
+  @Override public int isBillingSupported(int apiVersion, String packageName, String type)
+      throws RemoteException {
+    long start = SystemClock.elapsedRealtimeNanos();
+    try {
+      int response = service.isBillingSupported(apiVersion, packageName, type);
+      record(BillingServiceMetrics.Method.IS_BILLING_SUPPORTED, start, response);
+      return response;
+    } catch (RemoteException e) {
+      recordError(BillingServiceMetrics.Method.IS_BILLING_SUPPORTED, start);
+      throw e;
+    }
+  }
+
+  @Override public Bundle getSkuDetails(int apiVersion, String packageName, String type,
+      Bundle skusBundle) throws RemoteException {
+    long start = SystemClock.elapsedRealtimeNanos();
+    try {
+      Bundle skuDetails = service.getSkuDetails(apiVersion, packageName, type, skusBundle);
+      record(BillingServiceMetrics.Method.GET_SKU_DETAILS, start, skuDetails);
+      return skuDetails;
+    } catch (RemoteException e) {
+      recordError(BillingServiceMetrics.Method.GET_SKU_DETAILS, start);
+      throw e;
+    }
+  }
+
+  @Override public Bundle getBuyIntent(int apiVersion, String packageName, String sku,
+      String type, String developerPayload) throws RemoteException {
+    long start = SystemClock.elapsedRealtimeNanos();
+    try {
+      Bundle buyIntent =
+          service.getBuyIntent(apiVersion, packageName, sku, type, developerPayload);
+      record(BillingServiceMetrics.Method.GET_BUY_INTENT, start, buyIntent);
+      return buyIntent;
+    } catch (RemoteException e) {
+      recordError(BillingServiceMetrics.Method.GET_BUY_INTENT, start);
+      throw e;
+    }
+  }
+
+  @Override public Bundle getPurchases(int apiVersion, String packageName, String type,
+      String continuationToken) throws RemoteException {
+    long start = SystemClock.elapsedRealtimeNanos();
+    try {
+      Bundle purchases = service.getPurchases(apiVersion, packageName, type, continuationToken);
+      record(BillingServiceMetrics.Method.GET_PURCHASES, start, purchases);
+      return purchases;
+    } catch (RemoteException e) {
+      recordError(BillingServiceMetrics.Method.GET_PURCHASES, start);
+      throw e;
+    }
+  }
+
+  @Override public int consumePurchase(int apiVersion, String packageName, String purchaseToken)
+      throws RemoteException {
+    long start = SystemClock.elapsedRealtimeNanos();
+    try {
+      int response = service.consumePurchase(apiVersion, packageName, purchaseToken);
+      record(BillingServiceMetrics.Method.CONSUME_PURCHASE, start, response);
+      return response;
+    } catch (RemoteException e) {
+      recordError(BillingServiceMetrics.Method.CONSUME_PURCHASE, start);
+      throw e;
+    }
+  }
+
+  @Override public Bundle getBuyIntentToReplaceSkus(int apiVersion, String packageName,
+      List<String> oldSkus, String newSku, String type, String developerPayload)
+      throws RemoteException {
+    long start = SystemClock.elapsedRealtimeNanos();
+    try {
+      Bundle buyIntent =
+          service.getBuyIntentToReplaceSkus(apiVersion, packageName, oldSkus, newSku, type,
+              developerPayload);
+      record(BillingServiceMetrics.Method.GET_BUY_INTENT_TO_REPLACE_SKUS, start, buyIntent);
+      return buyIntent;
+    } catch (RemoteException e) {
+      recordError(BillingServiceMetrics.Method.GET_BUY_INTENT_TO_REPLACE_SKUS, start);
+      throw e;
+    }
+  }
+
+  private void record(BillingServiceMetrics.Method method, long start, int response) {
+    metrics.recordResponse(method, SystemClock.elapsedRealtimeNanos() - start, response);
+  }
+
+  private void record(BillingServiceMetrics.Method method, long start, Bundle bundle) {
+    record(method, start, getResponseCode(bundle));
+  }
+
+  private void recordError(BillingServiceMetrics.Method method, long start) {
+    metrics.recordError(method, SystemClock.elapsedRealtimeNanos() - start);
+  }
+
+  /**
+   * Reads the response code the same way {@link IabHelper} does, without failing on a bad one.
+   */
+  private static int getResponseCode(Bundle bundle) {
+    if (bundle == null) {
+      return -1;
+    }
+    Object o = bundle.get(RESPONSE_CODE);
+    if (o == null) {
+      return BILLING_RESPONSE_RESULT_OK;
+    } else if (o instanceof Integer) {
+      return (Integer) o;
+    } else if (o instanceof Long) {
+      return (int) ((Long) o).longValue();
+    }
+    return -1;
+  }
+}
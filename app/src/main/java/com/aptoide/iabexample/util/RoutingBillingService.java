@@ -0,0 +1,492 @@
+package com.aptoide.iabexample.util;
+
+import android.os.Bundle;
+import android.os.DeadObjectException;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.TransactionTooLargeException;
+import android.text.TextUtils;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import static com.aptoide.iabexample.util.IabHelper.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED;
+import static com.aptoide.iabexample.util.IabHelper.BILLING_RESPONSE_RESULT_OK;
+import static com.aptoide.iabexample.util.IabHelper.GET_SKU_DETAILS_ITEM_LIST;
+import static com.aptoide.iabexample.util.IabHelper.INAPP_CONTINUATION_TOKEN;
+import static com.aptoide.iabexample.util.IabHelper.ITEM_TYPE_SUBS;
+import static com.aptoide.iabexample.util.IabHelper.RESPONSE_CODE;
+import static com.aptoide.iabexample.util.IabHelper.RESPONSE_INAPP_ITEM_LIST;
+import static com.aptoide.iabexample.util.IabHelper.RESPONSE_INAPP_PURCHASE_DATA_LIST;
+import static com.aptoide.iabexample.util.IabHelper.RESPONSE_INAPP_SIGNATURE_LIST;
+
+/**
+ * {@link BillingService} that sends the calls of the app to several connected billing providers.
+ *
+ * The providers aren't replicas of one another: each wallet only knows about the purchases made
+ * through it. So only the calls that don't depend on purchases, billing support and SKU details,
+ * go to the healthy provider that has been answering the fastest. The latency of every call is
+ * measured, starting with the one of the setup checks. A provider whose call fails is set aside
+ * for a while, longer after every failure in a row, and the call is sent to the next provider.
+ * SKU details asked for several SKUs at once are the exception: their failure may be due to the
+ * size of the reply, which {@link IabHelper} handles by asking for fewer SKUs.
+ *
+ * Buy intents go to the healthy provider that comes first in the {@link BillingProviderRegistry},
+ * the one the app is built for, so the user buys through the same wallet every time.
+ *
+ * The owned purchases are asked to every connected provider and merged. A provider that can't
+ * answer is left out, so that one failing wallet doesn't hide the purchases of the others, and the
+ * query only fails if none of them answers. Purchase tokens are remembered with the provider that
+ * returned them, and the purchase made through a provider's buy intent is assumed to be its own,
+ * so that consuming a purchase goes to the provider it came from and nowhere else.
+ *
+ * Only the providers of the registry are called, whatever other providers are connected.
+ */
+class RoutingBillingService implements BillingService {
+  private static final double LATENCY_WEIGHT = 0.2;
+  private static final long MIN_COOL_DOWN_MILLIS = 5000;
+  private static final long MAX_COOL_DOWN_MILLIS = 60000;
+  private static final int MAX_TOKENS = 256;
+  private static final int MAX_CONTINUATIONS = 16;
+  private static final String CONTINUATION_TOKEN_PREFIX = "routing:";
+
+  private final List<Route> routes = new CopyOnWriteArrayList<>();
+  // Provider each purchase or continuation token came from, least recently used first
+  private final Map<String, Route> tokenRoutes = new LinkedHashMap<String, Route>(16, 0.75f, true) {
+    @Override protected boolean removeEldestEntry(Map.Entry<String, Route> eldest) {
+      return size() > MAX_TOKENS;
+    }
+  };
+  // Pages still to be asked for each continuation token handed out, least recently used first
+  private final Map<String, List<Page>> continuations =
+      new LinkedHashMap<String, List<Page>>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, List<Page>> eldest) {
+          return size() > MAX_CONTINUATIONS;
+        }
+      };
+  private final AtomicInteger continuationCount = new AtomicInteger();
+  private volatile Route lastBuyRoute;
+
+  void addRoute(BillingProvider provider, BillingService service,
+      BillingConnectionManager.SetupResult setupResult, long setupLatencyMillis) {
+    routes.add(new Route(provider, service, setupResult, setupLatencyMillis));
+  }
+
+  void removeRoute(BillingService service) {
+    for (Route route : routes) {
+      if (route.service == service) {
+        routes.remove(route);
+      }
+    }
+  }
+
+  void clear() {
+    routes.clear();
+    synchronized (tokenRoutes) {
+      tokenRoutes.clear();
+    }
+    synchronized (continuations) {
+      continuations.clear();
+    }
+    lastBuyRoute = null;
+  }
+
+  boolean isEmpty() {
+    return getRegisteredRoutes().isEmpty();
+  }
+
+  boolean isSubscriptionsSupported() {
+    for (Route route : getRegisteredRoutes()) {
+      if (route.subscriptionsSupported) return true;
+    }
+    return false;
+  }
+
+  boolean isSubscriptionUpdateSupported() {
+    for (Route route : getRegisteredRoutes()) {
+      if (route.subscriptionUpdateSupported) return true;
+    }
+    return false;
+  }
+
+  @Override public int isBillingSupported(final int apiVersion, final String packageName,
+      final String type) throws RemoteException {
+    return route(getRoutes(type, false),
+        route -> route.service.isBillingSupported(apiVersion, packageName, type));
+  }
+
+  @Override public Bundle getSkuDetails(final int apiVersion, final String packageName,
+      final String type, final Bundle skusBundle) throws RemoteException {
+    List<String> skus = skusBundle.getStringArrayList(GET_SKU_DETAILS_ITEM_LIST);
+    // The caller retries a failed pack of several SKUs in smaller packs, as the failure may be
+    // due to the size of the reply rather than to the provider
+    boolean sizeMayFail = skus != null && skus.size() > 1;
+    return route(getRoutes(type, false),
+        route -> route.service.getSkuDetails(apiVersion, packageName, type, skusBundle),
+        sizeMayFail);
+  }
+
+  @Override public Bundle getBuyIntent(final int apiVersion, final String packageName,
+      final String sku, final String type, final String developerPayload) throws RemoteException {
+    return route(getBuyRoutes(type, false), route -> {
+      Bundle buyIntent =
+          route.service.getBuyIntent(apiVersion, packageName, sku, type, developerPayload);
+      lastBuyRoute = route;
+      return buyIntent;
+    });
+  }
+
+  /**
+   * Asks every provider for its purchases and merges those of the providers that answer. The
+   * continuation token of the merged answer stands for the continuation tokens of all the
+   * providers that have more purchases.
+   */
+  @Override public Bundle getPurchases(final int apiVersion, final String packageName,
+      final String type, final String continuationToken) throws RemoteException {
+    List<Page> pages;
+    if (continuationToken == null) {
+      pages = new ArrayList<>();
+      for (Route route : getRegisteredRoutes()) {
+        if (!ITEM_TYPE_SUBS.equals(type) || route.subscriptionsSupported) {
+          pages.add(new Page(route, null));
+        }
+      }
+    } else {
+      synchronized (continuations) {
+        pages = continuations.remove(continuationToken);
+      }
+      if (pages == null) {
+        throw new RemoteException("Unknown continuation token");
+      }
+    }
+    if (pages.isEmpty()) {
+      throw new DeadObjectException();
+    }
+    List<Route> registered = getRegisteredRoutes();
+    ArrayList<String> itemList = new ArrayList<>();
+    ArrayList<String> purchaseDataList = new ArrayList<>();
+    ArrayList<String> signatureList = new ArrayList<>();
+    List<Page> nextPages = new ArrayList<>();
+    RemoteException failure = null;
+    Bundle failedResponse = null;
+    int answered = 0;
+    for (final Page page : pages) {
+      if (!registered.contains(page.route)) {
+        // Disconnected or unregistered since the previous page
+        continue;
+      }
+      Bundle purchases;
+      try {
+        purchases = route(Collections.singletonList(page.route),
+            route -> route.service.getPurchases(apiVersion, packageName, type, page.token));
+      } catch (RemoteException e) {
+        failure = e;
+        continue;
+      }
+      if (getResponseCode(purchases) != BILLING_RESPONSE_RESULT_OK) {
+        failedResponse = purchases;
+        continue;
+      }
+      answered++;
+      rememberTokens(page.route, purchases);
+      addAll(itemList, purchases.getStringArrayList(RESPONSE_INAPP_ITEM_LIST));
+      addAll(purchaseDataList, purchases.getStringArrayList(RESPONSE_INAPP_PURCHASE_DATA_LIST));
+      addAll(signatureList, purchases.getStringArrayList(RESPONSE_INAPP_SIGNATURE_LIST));
+      String nextToken = purchases.getString(INAPP_CONTINUATION_TOKEN);
+      if (!TextUtils.isEmpty(nextToken)) {
+        nextPages.add(new Page(page.route, nextToken));
+      }
+    }
+    if (answered == 0) {
+      if (failedResponse != null) {
+        return failedResponse;
+      }
+      throw failure != null ? failure : new DeadObjectException();
+    }
+    Bundle merged = new Bundle();
+    merged.putInt(RESPONSE_CODE, BILLING_RESPONSE_RESULT_OK);
+    merged.putStringArrayList(RESPONSE_INAPP_ITEM_LIST, itemList);
+    merged.putStringArrayList(RESPONSE_INAPP_PURCHASE_DATA_LIST, purchaseDataList);
+    merged.putStringArrayList(RESPONSE_INAPP_SIGNATURE_LIST, signatureList);
+    if (!nextPages.isEmpty()) {
+      String nextToken = CONTINUATION_TOKEN_PREFIX + continuationCount.incrementAndGet();
+      synchronized (continuations) {
+        continuations.put(nextToken, nextPages);
+      }
+      merged.putString(INAPP_CONTINUATION_TOKEN, nextToken);
+    }
+    return merged;
+  }
+
+  @Override public int consumePurchase(final int apiVersion, final String packageName,
+      final String purchaseToken) throws RemoteException {
+    Route owner = getOwnerRoute(purchaseToken);
+    if (owner == null) {
+      // Sending it to a provider that didn't sell it would only get a misleading answer
+      return BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED;
+    }
+    return route(Collections.singletonList(owner),
+        route -> route.service.consumePurchase(apiVersion, packageName, purchaseToken));
+  }
+
+  @Override public Bundle getBuyIntentToReplaceSkus(final int apiVersion, final String packageName,
+      final List<String> oldSkus, final String newSku, final String type,
+      final String developerPayload) throws RemoteException {
+    return route(getBuyRoutes(type, true), route -> {
+      Bundle buyIntent =
+          route.service.getBuyIntentToReplaceSkus(apiVersion, packageName, oldSkus, newSku, type,
+              developerPayload);
+      lastBuyRoute = route;
+      return buyIntent;
+    });
+  }
+
+  /**
+   * Sends the call to the first of the routes that answers it, measuring how long it takes.
+   */
+  private <T> T route(List<Route> candidates, Call<T> call) throws RemoteException {
+    return route(candidates, call, false);
+  }
+
+  /**
+   * @param sizeMayFail If true any remote error may be due to the size of the call, so it is
+   * passed on to the caller without failing over or counting it against the provider.
+   */
+  private <T> T route(List<Route> candidates, Call<T> call, boolean sizeMayFail)
+      throws RemoteException {
+    RemoteException failure = null;
+    for (Route route : candidates) {
+      long start = SystemClock.elapsedRealtime();
+      try {
+        T result = call.call(route);
+        route.onSuccess(SystemClock.elapsedRealtime() - start);
+        return result;
+      } catch (TransactionTooLargeException e) {
+        // The call is too big, not the provider at fault, and no other one would take it either
+        throw e;
+      } catch (RemoteException e) {
+        if (sizeMayFail) {
+          throw e;
+        }
+        route.onFailure();
+        failure = e;
+      }
+    }
+    if (failure == null) {
+      throw new DeadObjectException();
+    }
+    throw failure;
+  }
+
+  /**
+   * @return The routes that can take the call, best first.
+   */
+  private List<Route> getRoutes(String type, boolean subscriptionUpdate) {
+    long now = SystemClock.elapsedRealtime();
+    List<Route> registered = getRegisteredRoutes();
+    List<RankedRoute> ranked = new ArrayList<>(registered.size());
+    for (Route route : registered) {
+      if (subscriptionUpdate ? route.subscriptionUpdateSupported
+          : !ITEM_TYPE_SUBS.equals(type) || route.subscriptionsSupported) {
+        ranked.add(new RankedRoute(route, now));
+      }
+    }
+    if (ranked.isEmpty()) {
+      // None supports it, any of them can say so
+      for (Route route : registered) {
+        ranked.add(new RankedRoute(route, now));
+      }
+    }
+    Collections.sort(ranked);
+    List<Route> candidates = new ArrayList<>(ranked.size());
+    for (RankedRoute rankedRoute : ranked) {
+      candidates.add(rankedRoute.route);
+    }
+    return candidates;
+  }
+
+  /**
+   * @return The routes that can take a buy intent call, healthy ones first, then in the order of
+   * the registry.
+   */
+  private List<Route> getBuyRoutes(String type, boolean subscriptionUpdate) {
+    long now = SystemClock.elapsedRealtime();
+    final List<BillingProvider> registered = BillingProviderRegistry.getProviders();
+    List<Route> healthy = new ArrayList<>();
+    List<Route> unhealthy = new ArrayList<>();
+    for (Route route : getRoutes(type, subscriptionUpdate)) {
+      (route.isHealthy(now) ? healthy : unhealthy).add(route);
+    }
+    Comparator<Route> byRank =
+        (route, other) -> Integer.compare(getRank(registered, route), getRank(registered, other));
+    Collections.sort(healthy, byRank);
+    Collections.sort(unhealthy, byRank);
+    healthy.addAll(unhealthy);
+    return healthy;
+  }
+
+  private static int getRank(List<BillingProvider> registered, Route route) {
+    int index = registered.indexOf(route.provider);
+    return index < 0 ? Integer.MAX_VALUE : index;
+  }
+
+  /**
+   * @return The routes of the connected providers that are in the registry.
+   */
+  private List<Route> getRegisteredRoutes() {
+    List<Route> registered = new ArrayList<>(routes.size());
+    for (Route route : routes) {
+      if (BillingProviderRegistry.isRegistered(route.provider)) {
+        registered.add(route);
+      }
+    }
+    return registered;
+  }
+
+  /**
+   * @return The route the purchase token came from, or the one the last purchase was made
+   * through, if it is still connected, or null if the owner isn't known.
+   */
+  private Route getOwnerRoute(String token) {
+    Route owner;
+    synchronized (tokenRoutes) {
+      owner = tokenRoutes.get(token);
+    }
+    if (owner == null) {
+      owner = lastBuyRoute;
+    }
+    List<Route> registered = getRegisteredRoutes();
+    if (owner == null && registered.size() == 1) {
+      owner = registered.get(0);
+    }
+    return owner != null && registered.contains(owner) ? owner : null;
+  }
+
+  private void rememberTokens(Route route, Bundle purchases) {
+    if (purchases == null) {
+      return;
+    }
+    List<String> purchaseDataList = purchases.getStringArrayList(RESPONSE_INAPP_PURCHASE_DATA_LIST);
+    if (purchaseDataList == null) {
+      return;
+    }
+    synchronized (tokenRoutes) {
+      for (String purchaseData : purchaseDataList) {
+        try {
+          JSONObject o = new JSONObject(purchaseData);
+          String token = o.optString("token", o.optString("purchaseToken"));
+          if (!token.isEmpty()) {
+            tokenRoutes.put(token, route);
+          }
+        } catch (JSONException e) {
+          // IabHelper reports the bad response
+        }
+      }
+    }
+  }
+
+  private static void addAll(List<String> list, List<String> values) {
+    if (values != null) {
+      list.addAll(values);
+    }
+  }
+
+  // Workaround to bug where sometimes response codes come as Long instead of Integer
+  private static int getResponseCode(Bundle bundle) {
+    Object o = bundle == null ? null : bundle.get(RESPONSE_CODE);
+    if (o instanceof Long) {
+      return (int) ((Long) o).longValue();
+    }
+    return o instanceof Integer ? (Integer) o : BILLING_RESPONSE_RESULT_OK;
+  }
+
+  /**
+   * A page of purchases still to be asked to a provider.
+   */
+  private static final class Page {
+    final Route route;
+    final String token;
+
+    Page(Route route, String token) {
+      this.route = route;
+      this.token = token;
+    }
+  }
+
+  private interface Call<T> {
+    T call(Route route) throws RemoteException;
+  }
+
+  /**
+   * A route with its health and latency at a given time, so that they don't change while routes
+   * are being sorted.
+   */
+  private static final class RankedRoute implements Comparable<RankedRoute> {
+    final Route route;
+    final boolean healthy;
+    final double latencyMillis;
+
+    RankedRoute(Route route, long now) {
+      this.route = route;
+      this.healthy = route.isHealthy(now);
+      this.latencyMillis = route.averageLatencyMillis;
+    }
+
+    @Override public int compareTo(RankedRoute other) {
+      if (healthy != other.healthy) {
+        return healthy ? -1 : 1;
+      }
+      return Double.compare(latencyMillis, other.latencyMillis);
+    }
+  }
+
+  /**
+   * A connected provider and how well it has been answering.
+   */
+  private static final class Route {
+    final BillingProvider provider;
+    final BillingService service;
+    final boolean subscriptionsSupported;
+    final boolean subscriptionUpdateSupported;
+    volatile double averageLatencyMillis;
+    private int consecutiveFailures;
+    private long unhealthyUntilMillis;
+
+    Route(BillingProvider provider, BillingService service,
+        BillingConnectionManager.SetupResult setupResult, long setupLatencyMillis) {
+      this.provider = provider;
+      this.service = service;
+      this.subscriptionsSupported = setupResult.subscriptionsSupported;
+      this.subscriptionUpdateSupported = setupResult.subscriptionUpdateSupported;
+      this.averageLatencyMillis = setupLatencyMillis;
+    }
+
+    synchronized boolean isHealthy(long now) {
+      return now >= unhealthyUntilMillis;
+    }
+
+    synchronized void onSuccess(long latencyMillis) {
+      averageLatencyMillis += LATENCY_WEIGHT * (latencyMillis - averageLatencyMillis);
+      consecutiveFailures = 0;
+      unhealthyUntilMillis = 0;
+    }
+
+    synchronized void onFailure() {
+      consecutiveFailures++;
+      long coolDown = MIN_COOL_DOWN_MILLIS << Math.min(consecutiveFailures - 1, 4);
+      unhealthyUntilMillis =
+          SystemClock.elapsedRealtime() + Math.min(coolDown, MAX_COOL_DOWN_MILLIS);
+    }
+
+    @Override public String toString() {
+      return provider + " (" + Math.round(averageLatencyMillis) + " ms)";
+    }
+  }
+}
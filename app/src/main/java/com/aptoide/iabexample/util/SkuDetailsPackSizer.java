@@ -0,0 +1,95 @@
+package com.aptoide.iabexample.util;
+
+import android.content.SharedPreferences;
+
+/**
+ * Picks how many SKUs are asked for in each getSkuDetails call.
+ *
+ * Each call costs a binder transaction, so the fewer the better, but the details of too many SKUs
+ * can make the reply bigger than what a transaction can carry, which fails it with a
+ * {@link android.os.TransactionTooLargeException}. The pack size starts at 20 and grows while
+ * full packs are answered within the latency target and the details of the bigger pack would
+ * still fit the payload target. It shrinks when a pack goes over either, and is halved when a
+ * transaction is too large.
+ *
+ * The payload target is compared with an estimate of the size of the SKU details only, which
+ * leaves out the overhead of the parcel, so it is kept well below the real limit rather than
+ * being an exact bound.
+ *
+ * The size is tuned for a wallet version, as another version may answer faster or with longer
+ * details, and kept in {@link SharedPreferences} so it doesn't have to be found again on every
+ * launch.
+ */
+final class SkuDetailsPackSizer {
+  static final int DEFAULT_PACK_SIZE = 20;
+  private static final int MIN_PACK_SIZE = 1;
+  private static final int MAX_PACK_SIZE = 200;
+  private static final long TARGET_LATENCY_MILLIS = 500;
+  // Well under the 1 MB binder transaction buffer, which is shared by the whole process, to leave
+  // room for the parcel overhead the estimates of the payload don't count
+  private static final long TARGET_PAYLOAD_BYTES = 200 * 1024;
+  private static final String PACK_SIZE_KEY_PREFIX = "packSize:";
+
+  private final SharedPreferences preferences;
+  private final String key;
+  private int packSize;
+
+  /**
+   * @param preferences Where the tuned size is kept, or null if it isn't kept.
+   * @param walletVersion Identifies the wallet version the size is tuned for.
+   */
+  SkuDetailsPackSizer(SharedPreferences preferences, String walletVersion) {
+    this.preferences = preferences;
+    this.key = PACK_SIZE_KEY_PREFIX + walletVersion;
+    int stored = preferences == null ? DEFAULT_PACK_SIZE
+        : preferences.getInt(key, DEFAULT_PACK_SIZE);
+    this.packSize = Math.max(MIN_PACK_SIZE, Math.min(stored, MAX_PACK_SIZE));
+  }
+
+  synchronized int getPackSize() {
+    return packSize;
+  }
+
+  /**
+   * Tunes the size after a pack was answered.
+   *
+   * @param requested Number of SKUs asked for.
+   * @param answered Number of SKU details in the answer.
+   * @param payloadBytes Approximate size of the SKU details in the answer, without the parcel
+   * overhead.
+   */
+  synchronized void onPackAnswered(int requested, int answered, long latencyMillis,
+      long payloadBytes) {
+    int size = packSize;
+    if (latencyMillis > TARGET_LATENCY_MILLIS || payloadBytes > TARGET_PAYLOAD_BYTES) {
+      size = Math.max(MIN_PACK_SIZE, Math.min(size, requested) * 3 / 4);
+    } else if (requested >= packSize && answered > 0) {
+      // Only a full pack tells whether a bigger one would still be within the targets
+      long bytesPerSku = Math.max(1, payloadBytes / answered);
+      int grown = Math.min(MAX_PACK_SIZE, size + Math.max(1, size / 2));
+      size = (int) Math.max(size, Math.min(grown, TARGET_PAYLOAD_BYTES / bytesPerSku));
+    }
+    setPackSize(size);
+  }
+
+  /**
+   * Halves the size after a pack was too large for a binder transaction.
+   *
+   * @param requested Number of SKUs asked for in the pack that failed.
+   */
+  synchronized void onTransactionTooLarge(int requested) {
+    setPackSize(Math.max(MIN_PACK_SIZE, Math.min(packSize, requested / 2)));
+  }
+
+  private void setPackSize(int size) {
+    if (size == packSize) {
+      return;
+    }
+    packSize = size;
+    if (preferences != null) {
+      preferences.edit()
+          .putInt(key, size)
+          .apply();
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package com.aptoide.iabexample.checkserver;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line options of the form {@code --name value}, or just {@code --name} for flags.
+ */
+final class Arguments {
+  private final Map<String, String> values = new HashMap<>();
+
+  Arguments(String[] args) {
+    for (int i = 0; i < args.length; i++) {
+      if (!args[i].startsWith("--")) {
+        throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+      }
+      if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+        values.put(args[i], args[++i]);
+      } else {
+        values.put(args[i], "true");
+      }
+    }
+  }
+
+  String getString(String name, String defaultValue) {
+    String value = values.get(name);
+    return value != null ? value : defaultValue;
+  }
+
+  int getInt(String name, int defaultValue) {
+    String value = values.get(name);
+    return value != null ? Integer.parseInt(value) : defaultValue;
+  }
+
+  double getDouble(String name, double defaultValue) {
+    String value = values.get(name);
+    return value != null ? Double.parseDouble(value) : defaultValue;
+  }
+
+  boolean getFlag(String name) {
+    return Boolean.parseBoolean(values.get(name));
+  }
+}
@@ -0,0 +1,286 @@
+package com.aptoide.iabexample.checkserver;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reference implementation of the purchase check backend used by {@code PurchaseService}.
+ *
+ * Endpoints:
+ * <ul>
+ *   <li>{@code POST /purchase/{pkg}/check} with {@code {"token":"...","product":"..."}}, answers
+ *   {@code {"status":"SUCCESS"}} or {@code {"status":"FAILED"}}.</li>
+ *   <li>{@code POST /purchase/{pkg}/check/batch} with {@code {"purchases":[...]}}, answers
+ *   {@code {"results":[{"product":"...","token":"...","status":"..."}]}}.</li>
+ *   <li>{@code POST /purchase/{pkg}/receipts} with {@code {"token":"...","signedData":"...",
+ *   "signature":"..."}}, registers a receipt so it can be checked.</li>
+ * </ul>
+ * Gzip encoded request bodies are accepted and responses are gzip encoded when the client asks
+ * for it.
+ *
+ * Connections are accepted and read by the selector loop of the JDK http server, and requests are
+ * handled on a fixed pool of threads, so many keep-alive connections are served by a few threads.
+ */
+public class CheckServer {
+  public static final int DEFAULT_PORT = 8080;
+  private static final Pattern PATH =
+      Pattern.compile("/purchase/([^/]+)/(check|check/batch|receipts)");
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String STATUS_SUCCESS = "SUCCESS";
+  private static final String STATUS_FAILED = "FAILED";
+  private static final int BUFFER_SIZE = 4096;
+
+  static {
+    // The JDK server writes the headers and the body of a response separately. With Nagle's
+    // algorithm on, small responses then wait for the client's delayed ack, about 40 ms each.
+    // This is read once, when the first server is created.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+  }
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final ReceiptStore receiptStore;
+  private final ReceiptVerifier verifier;
+  private final Gson gson = new Gson();
+
+  /**
+   * @param address The address to listen on. Port 0 picks a free port.
+   * @param threads Number of threads handling requests.
+   */
+  public CheckServer(InetSocketAddress address, int threads, ReceiptStore receiptStore,
+      ReceiptVerifier verifier) throws IOException {
+    this.receiptStore = receiptStore;
+    this.verifier = verifier;
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(threads,
+        runnable -> new Thread(runnable, "CheckServer-" + threadCount.incrementAndGet()));
+    this.server = HttpServer.create(address, 0);
+    this.server.setExecutor(executor);
+    this.server.createContext("/purchase/", this::handle);
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdown();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread()
+          .interrupt();
+    }
+  }
+
+  public int getPort() {
+    return server.getAddress()
+        .getPort();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      Matcher matcher = PATH.matcher(exchange.getRequestURI()
+          .getPath());
+      if (!matcher.matches()) {
+        sendEmpty(exchange, 404);
+        return;
+      }
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        sendEmpty(exchange, 405);
+        return;
+      }
+      String packageName = matcher.group(1);
+      Object response;
+      try (Reader body = new InputStreamReader(openRequestBody(exchange), UTF_8)) {
+        switch (matcher.group(2)) {
+          case "check":
+            response = check(packageName, gson.fromJson(body, CheckRequest.class));
+            break;
+          case "check/batch":
+            response = checkBatch(packageName, gson.fromJson(body, BatchCheckRequest.class));
+            break;
+          default:
+            response = register(gson.fromJson(body, RegisterRequest.class));
+            break;
+        }
+      } catch (JsonParseException e) {
+        sendEmpty(exchange, 400);
+        return;
+      }
+      if (response == null) {
+        sendEmpty(exchange, 400);
+        return;
+      }
+      sendJson(exchange, response);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private StatusResponse check(String packageName, CheckRequest request) {
+    if (request == null || request.token == null) {
+      return null;
+    }
+    return new StatusResponse(isValid(packageName, request));
+  }
+
+  private BatchResponse checkBatch(String packageName, BatchCheckRequest request) {
+    if (request == null || request.purchases == null) {
+      return null;
+    }
+    List<BatchResponse.Result> results = new ArrayList<>(request.purchases.size());
+    for (CheckRequest purchase : request.purchases) {
+      if (purchase != null && purchase.token != null) {
+        results.add(new BatchResponse.Result(purchase.product, purchase.token,
+            isValid(packageName, purchase)));
+      }
+    }
+    return new BatchResponse(results);
+  }
+
+  private StatusResponse register(RegisterRequest request) {
+    if (request == null || request.token == null) {
+      return null;
+    }
+    receiptStore.put(new Receipt(request.token, request.signedData, request.signature));
+    return new StatusResponse(STATUS_SUCCESS);
+  }
+
+  private String isValid(String packageName, CheckRequest request) {
+    Receipt receipt = receiptStore.get(request.token);
+    return verifier.verify(receipt, packageName, request.product, request.token) ? STATUS_SUCCESS
+        : STATUS_FAILED;
+  }
+
+  private static InputStream openRequestBody(HttpExchange exchange) throws IOException {
+    InputStream body = exchange.getRequestBody();
+    if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders()
+        .getFirst("Content-Encoding"))) {
+      return new GZIPInputStream(body, BUFFER_SIZE);
+    }
+    return body;
+  }
+
+  private void sendJson(HttpExchange exchange, Object response) throws IOException {
+    String acceptEncoding = exchange.getRequestHeaders()
+        .getFirst("Accept-Encoding");
+    boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    try (Writer writer = new OutputStreamWriter(gzip ? new GZIPOutputStream(bytes) : bytes,
+        UTF_8)) {
+      gson.toJson(response, writer);
+    }
+    exchange.getResponseHeaders()
+        .set("Content-Type", "application/json;charset=UTF-8");
+    if (gzip) {
+      exchange.getResponseHeaders()
+          .set("Content-Encoding", "gzip");
+    }
+    exchange.sendResponseHeaders(200, bytes.size());
+    try (OutputStream out = exchange.getResponseBody()) {
+      bytes.writeTo(out);
+    }
+  }
+
+  private static void sendEmpty(HttpExchange exchange, int code) throws IOException {
+    exchange.sendResponseHeaders(code, -1);
+  }
+
+  /**
+   * Starts a server on its own. Receipts are registered through the receipts endpoint.
+   *
+   * Arguments: {@code --public-key <base64> [--port <port>] [--threads <threads>]}
+   */
+  public static void main(String[] args) throws IOException {
+    Arguments arguments = new Arguments(args);
+    String publicKey = arguments.getString("--public-key", null);
+    if (publicKey == null) {
+      System.err.println(
+          "Usage: CheckServer --public-key <base64> [--port <port>] [--threads <threads>]");
+      System.exit(1);
+    }
+    int port = arguments.getInt("--port", DEFAULT_PORT);
+    int threads = arguments.getInt("--threads", 2 * Runtime.getRuntime()
+        .availableProcessors());
+    CheckServer server = new CheckServer(new InetSocketAddress(port), threads, new ReceiptStore(),
+        ReceiptVerifier.fromBase64(publicKey));
+    server.start();
+    System.out.println("Check server listening on port " + server.getPort());
+  }
+
+  static final class CheckRequest {
+    String token;
+    String product;
+
+    CheckRequest(String token, String product) {
+      this.token = token;
+      this.product = product;
+    }
+  }
+
+  static final class BatchCheckRequest {
+    List<CheckRequest> purchases;
+
+    BatchCheckRequest(List<CheckRequest> purchases) {
+      this.purchases = purchases;
+    }
+  }
+
+  static final class RegisterRequest {
+    String token;
+    String signedData;
+    String signature;
+  }
+
+  static final class StatusResponse {
+    String status;
+
+    StatusResponse(String status) {
+      this.status = status;
+    }
+  }
+
+  static final class BatchResponse {
+    List<Result> results;
+
+    BatchResponse(List<Result> results) {
+      this.results = results;
+    }
+
+    static final class Result {
+      String product;
+      String token;
+      String status;
+
+      Result(String product, String token, String status) {
+        this.product = product;
+        this.token = token;
+        this.status = status;
+      }
+    }
+  }
+}
@@ -0,0 +1,327 @@
+package com.aptoide.iabexample.checkserver;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Measures the purchase check backend on localhost.
+ *
+ * Starts a {@link CheckServer} in process with a freshly generated developer key, registers
+ * signed receipts with it and sends check requests to it from a number of concurrent clients.
+ * The requests are the same ones {@code PurchaseService} sends, over keep-alive connections.
+ * Some requests are for a product the receipt is not for, so both outcomes are exercised and the
+ * answers are checked. Throughput and latency percentiles are printed at the end.
+ *
+ * Arguments, all optional:
+ * <pre>
+ *   --concurrency &lt;n&gt;      concurrent clients (default 16)
+ *   --requests &lt;n&gt;         requests to send after the warm up (default 20000)
+ *   --warmup &lt;n&gt;           requests sent first and left out of the results (default 2000)
+ *   --receipts &lt;n&gt;         distinct receipts (default 1000)
+ *   --batch-size &lt;n&gt;       purchases per request, 1 uses the single check endpoint (default 1)
+ *   --invalid-ratio &lt;r&gt;    share of purchases checked against the wrong product (default 0.1)
+ *   --server-threads &lt;n&gt;   threads of the server (default 2 x cores)
+ *   --gzip                  gzip request bodies and ask for gzip responses
+ * </pre>
+ */
+public class LoadGenerator {
+  private static final String PACKAGE_NAME = "com.appcoins.trivialdrivesample";
+  private static final String[] SKUS = { "gas", "premium", "gas_weekly", "donation" };
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int BUFFER_SIZE = 4096;
+
+  private final int concurrency;
+  private final int requests;
+  private final int warmup;
+  private final int batchSize;
+  private final double invalidRatio;
+  private final boolean gzip;
+  private final List<Receipt> receipts;
+  private final String checkUrl;
+  private final String batchUrl;
+  private final Gson gson = new Gson();
+
+  private LoadGenerator(Arguments arguments, List<Receipt> receipts, int port) {
+    this.concurrency = arguments.getInt("--concurrency", 16);
+    this.requests = arguments.getInt("--requests", 20000);
+    this.warmup = arguments.getInt("--warmup", 2000);
+    this.batchSize = arguments.getInt("--batch-size", 1);
+    this.invalidRatio = arguments.getDouble("--invalid-ratio", 0.1);
+    this.gzip = arguments.getFlag("--gzip");
+    this.receipts = receipts;
+    String baseUrl = "http://127.0.0.1:" + port + "/purchase/" + PACKAGE_NAME;
+    this.checkUrl = baseUrl + "/check";
+    this.batchUrl = baseUrl + "/check/batch";
+  }
+
+  public static void main(String[] args) throws Exception {
+    Arguments arguments = new Arguments(args);
+    int receiptCount = arguments.getInt("--receipts", 1000);
+    int serverThreads = arguments.getInt("--server-threads", 2 * Runtime.getRuntime()
+        .availableProcessors());
+
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+    keyPairGenerator.initialize(2048);
+    KeyPair keyPair = keyPairGenerator.generateKeyPair();
+    ReceiptStore receiptStore = new ReceiptStore();
+    List<Receipt> receipts = createReceipts(keyPair.getPrivate(), receiptCount);
+    for (Receipt receipt : receipts) {
+      receiptStore.put(receipt);
+    }
+
+    CheckServer server =
+        new CheckServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), serverThreads,
+            receiptStore, new ReceiptVerifier(keyPair.getPublic()));
+    server.start();
+    try {
+      new LoadGenerator(arguments, receipts, server.getPort()).run();
+    } finally {
+      server.stop();
+    }
+  }
+
+  private static List<Receipt> createReceipts(PrivateKey privateKey, int count)
+      throws GeneralSecurityException {
+    Signature signature = Signature.getInstance("SHA1withRSA");
+    List<Receipt> receipts = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      String token = "catappult.inapp.purchase." + i;
+      JsonObject purchase = new JsonObject();
+      purchase.addProperty("orderId", "order." + i);
+      purchase.addProperty("packageName", PACKAGE_NAME);
+      purchase.addProperty("productId", skuOf(i));
+      purchase.addProperty("purchaseTime", System.currentTimeMillis());
+      purchase.addProperty("purchaseState", 0);
+      // Wallets name the token field either way, and both must be accepted
+      purchase.addProperty(i % 2 == 0 ? "purchaseToken" : "token", token);
+      String signedData = purchase.toString();
+      signature.initSign(privateKey);
+      signature.update(signedData.getBytes(UTF_8));
+      receipts.add(new Receipt(token, signedData, Base64.getEncoder()
+          .encodeToString(signature.sign())));
+    }
+    return receipts;
+  }
+
+  private static String skuOf(int receiptIndex) {
+    return SKUS[receiptIndex % SKUS.length];
+  }
+
+  private void run() throws Exception {
+    System.out.println(String.format(Locale.ENGLISH,
+        "Warming up with %d requests, %d concurrent clients, batch size %d%s", warmup,
+        concurrency, batchSize, gzip ? ", gzip" : ""));
+    runRequests(warmup);
+    Stats stats = runRequests(requests);
+    stats.print(batchSize);
+  }
+
+  private Stats runRequests(int count) throws Exception {
+    AtomicInteger remaining = new AtomicInteger(count);
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+    List<Future<Stats>> workers = new ArrayList<>(concurrency);
+    long start = System.nanoTime();
+    for (int i = 0; i < concurrency; i++) {
+      workers.add(executor.submit(() -> runWorker(remaining, count / concurrency + 1)));
+    }
+    Stats stats = new Stats(count);
+    for (Future<Stats> worker : workers) {
+      stats.add(worker.get());
+    }
+    stats.elapsedNanos = System.nanoTime() - start;
+    executor.shutdown();
+    return stats;
+  }
+
+  private Stats runWorker(AtomicInteger remaining, int expectedRequests) {
+    Stats stats = new Stats(expectedRequests);
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    while (remaining.getAndDecrement() > 0) {
+      List<Purchase> purchases = new ArrayList<>(batchSize);
+      for (int i = 0; i < batchSize; i++) {
+        int index = random.nextInt(receipts.size());
+        Receipt receipt = receipts.get(index);
+        String sku = skuOf(index);
+        boolean valid = random.nextDouble() >= invalidRatio;
+        purchases.add(new Purchase(receipt.getToken(), valid ? sku : sku + ".other", valid));
+      }
+      long start = System.nanoTime();
+      try {
+        int mismatches = batchSize == 1 ? check(purchases.get(0)) : checkBatch(purchases);
+        stats.record(System.nanoTime() - start);
+        stats.mismatches += mismatches;
+      } catch (IOException | RuntimeException e) {
+        stats.errors++;
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * @return 1 if the answer is not the expected one, 0 otherwise.
+   */
+  private int check(Purchase purchase) throws IOException {
+    JsonObject body = new JsonObject();
+    body.addProperty("token", purchase.token);
+    body.addProperty("product", purchase.sku);
+    JsonObject response = post(checkUrl, body);
+    boolean valid = "SUCCESS".equals(response.get("status")
+        .getAsString());
+    return valid == purchase.valid ? 0 : 1;
+  }
+
+  /**
+   * @return The number of purchases whose answer is not the expected one.
+   */
+  private int checkBatch(List<Purchase> purchases) throws IOException {
+    JsonArray array = new JsonArray();
+    for (Purchase purchase : purchases) {
+      JsonObject item = new JsonObject();
+      item.addProperty("token", purchase.token);
+      item.addProperty("product", purchase.sku);
+      array.add(item);
+    }
+    JsonObject body = new JsonObject();
+    body.add("purchases", array);
+    JsonArray results = post(batchUrl, body).getAsJsonArray("results");
+    int mismatches = Math.abs(purchases.size() - results.size());
+    for (int i = 0; i < Math.min(purchases.size(), results.size()); i++) {
+      boolean valid = "SUCCESS".equals(results.get(i)
+          .getAsJsonObject()
+          .get("status")
+          .getAsString());
+      if (valid != purchases.get(i).valid) {
+        mismatches++;
+      }
+    }
+    return mismatches;
+  }
+
+  private JsonObject post(String url, JsonObject body) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/json;charset=UTF-8");
+    connection.setRequestProperty("Accept", "application/json");
+    byte[] bytes = encode(body);
+    if (gzip) {
+      connection.setRequestProperty("Content-Encoding", "gzip");
+      connection.setRequestProperty("Accept-Encoding", "gzip");
+    }
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(bytes);
+    }
+    int code = connection.getResponseCode();
+    if (code != 200) {
+      connection.disconnect();
+      throw new IOException("Unexpected response code " + code);
+    }
+    InputStream in = connection.getInputStream();
+    if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+      in = new GZIPInputStream(in, BUFFER_SIZE);
+    }
+    try (Reader reader = new InputStreamReader(in, UTF_8)) {
+      return JsonParser.parseReader(reader)
+          .getAsJsonObject();
+    }
+  }
+
+  private byte[] encode(JsonObject body) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    try (OutputStream out = gzip ? new GZIPOutputStream(bytes) : bytes) {
+      out.write(gson.toJson(body)
+          .getBytes(UTF_8));
+    }
+    return bytes.toByteArray();
+  }
+
+  private static final class Purchase {
+    final String token;
+    final String sku;
+    final boolean valid;
+
+    Purchase(String token, String sku, boolean valid) {
+      this.token = token;
+      this.sku = sku;
+      this.valid = valid;
+    }
+  }
+
+  private static final class Stats {
+    long[] latencies;
+    int count;
+    int errors;
+    int mismatches;
+    long elapsedNanos;
+
+    Stats(int capacity) {
+      latencies = new long[Math.max(capacity, 16)];
+    }
+
+    void record(long latencyNanos) {
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, 2 * count);
+      }
+      latencies[count++] = latencyNanos;
+    }
+
+    void add(Stats other) {
+      for (int i = 0; i < other.count; i++) {
+        record(other.latencies[i]);
+      }
+      errors += other.errors;
+      mismatches += other.mismatches;
+    }
+
+    void print(int batchSize) {
+      Arrays.sort(latencies, 0, count);
+      double seconds = elapsedNanos / 1e9;
+      System.out.println(String.format(Locale.ENGLISH,
+          "%d requests in %.2f s: %.0f requests/s, %.0f purchases/s", count, seconds,
+          count / seconds, count * (double) batchSize / seconds));
+      System.out.println(String.format(Locale.ENGLISH,
+          "Latency ms: p50 %.2f, p90 %.2f, p99 %.2f, max %.2f", percentile(0.50),
+          percentile(0.90), percentile(0.99), percentile(1.0)));
+      System.out.println(String.format(Locale.ENGLISH, "Errors: %d, wrong answers: %d", errors,
+          mismatches));
+    }
+
+    private double percentile(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      int index = (int) Math.ceil(percentile * count) - 1;
+      return latencies[Math.max(0, Math.min(index, count - 1))] / 1e6;
+    }
+  }
+}
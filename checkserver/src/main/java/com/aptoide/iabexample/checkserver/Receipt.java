@@ -0,0 +1,35 @@
+package com.aptoide.iabexample.checkserver;
+
+/**
+ * A purchase receipt as issued by the billing service: the purchase data and its signature made
+ * with the developer key.
+ */
+public class Receipt {
+  private final String token;
+  private final String signedData;
+  private final String signature;
+
+  /**
+   * @param token The purchase token the client sends to have the purchase checked.
+   * @param signedData The JSON purchase data, holding at least packageName, productId and the
+   * token, as token or purchaseToken.
+   * @param signature The base64 encoded SHA1withRSA signature of the purchase data.
+   */
+  public Receipt(String token, String signedData, String signature) {
+    this.token = token;
+    this.signedData = signedData;
+    this.signature = signature;
+  }
+
+  public String getToken() {
+    return token;
+  }
+
+  public String getSignedData() {
+    return signedData;
+  }
+
+  public String getSignature() {
+    return signature;
+  }
+}
@@ -0,0 +1,26 @@
+package com.aptoide.iabexample.checkserver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In memory receipts known to the server, by purchase token.
+ */
+public class ReceiptStore {
+  private final Map<String, Receipt> receipts = new ConcurrentHashMap<>();
+
+  public void put(Receipt receipt) {
+    receipts.put(receipt.getToken(), receipt);
+  }
+
+  /**
+   * @return The receipt of the purchase, or null if it is unknown.
+   */
+  public Receipt get(String token) {
+    return receipts.get(token);
+  }
+
+  public int size() {
+    return receipts.size();
+  }
+}
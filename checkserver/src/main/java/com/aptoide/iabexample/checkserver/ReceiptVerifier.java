@@ -0,0 +1,105 @@
+package com.aptoide.iabexample.checkserver;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
+/**
+ * Checks receipts the same way the app's {@code Security} class does: the purchase data must be
+ * signed with SHA1withRSA by the developer key. On top of that, the purchase data must be for the
+ * package, product and token being checked.
+ *
+ * The signature engines are kept per thread, so a verifier can be shared by all server threads.
+ */
+public class ReceiptVerifier {
+  private static final String KEY_FACTORY_ALGORITHM = "RSA";
+  private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final PublicKey publicKey;
+  private final ThreadLocal<Signature> signatures = new ThreadLocal<>();
+
+  public ReceiptVerifier(PublicKey publicKey) {
+    this.publicKey = publicKey;
+  }
+
+  /**
+   * @param encodedPublicKey Base64 encoded X.509 public key, the same one the app is configured
+   * with.
+   *
+   * @throws IllegalArgumentException if the key is invalid.
+   */
+  public static ReceiptVerifier fromBase64(String encodedPublicKey) {
+    try {
+      byte[] decodedKey = Base64.getMimeDecoder()
+          .decode(encodedPublicKey);
+      KeyFactory keyFactory = KeyFactory.getInstance(KEY_FACTORY_ALGORITHM);
+      return new ReceiptVerifier(keyFactory.generatePublic(new X509EncodedKeySpec(decodedKey)));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalArgumentException("Invalid public key", e);
+    }
+  }
+
+  /**
+   * @return true if the receipt is correctly signed and is for the given purchase.
+   */
+  public boolean verify(Receipt receipt, String packageName, String sku, String token) {
+    if (receipt == null || !verifySignature(receipt.getSignedData(), receipt.getSignature())) {
+      return false;
+    }
+    try {
+      JsonObject purchase = JsonParser.parseString(receipt.getSignedData())
+          .getAsJsonObject();
+      return matches(purchase, "packageName", packageName)
+          && matches(purchase, "productId", sku)
+          && matches(purchase, getTokenField(purchase), token);
+    } catch (JsonParseException | IllegalStateException e) {
+      return false;
+    }
+  }
+
+  private boolean verifySignature(String signedData, String signature) {
+    if (signedData == null || signature == null) {
+      return false;
+    }
+    try {
+      byte[] signatureBytes = Base64.getMimeDecoder()
+          .decode(signature);
+      Signature sig = getSignature();
+      sig.initVerify(publicKey);
+      sig.update(signedData.getBytes(UTF_8));
+      return sig.verify(signatureBytes);
+    } catch (IllegalArgumentException | GeneralSecurityException e) {
+      return false;
+    }
+  }
+
+  private Signature getSignature() throws GeneralSecurityException {
+    Signature signature = signatures.get();
+    if (signature == null) {
+      signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+      signatures.set(signature);
+    }
+    return signature;
+  }
+
+  // Same as the app's Purchase, which reads "token" and falls back to "purchaseToken"
+  private static String getTokenField(JsonObject purchase) {
+    return purchase.has("token") ? "token" : "purchaseToken";
+  }
+
+  private static boolean matches(JsonObject purchase, String name, String expected) {
+    // A field that is an object, an array or null makes the receipt invalid, not the request
+    JsonElement value = purchase.get(name);
+    return value != null && value.isJsonPrimitive() && value.getAsString()
+        .equals(expected);
+  }
+}